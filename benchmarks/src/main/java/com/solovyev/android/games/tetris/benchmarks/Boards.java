@@ -0,0 +1,106 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.benchmarks;
+
+import com.solovyev.android.games.tetris.engine.HeadlessTetrisEngine;
+import com.solovyev.android.games.tetris.engine.Sea;
+import com.solovyev.games.tetris.Cell;
+
+
+/**
+ * Board fills used by the benchmarks
+ */
+public class Boards
+{
+    public static final int WIDTH = 10;
+    public static final int HEIGHT = 20;
+
+    private static final Cell.Color[] COLORS = Cell.Color.values();
+
+    public enum Fill
+    {
+        EMPTY(0), HALF(HEIGHT / 2), NEARLY_FULL(HEIGHT - 4);
+
+        private int rows;
+
+        private Fill(int rows)
+        {
+            this.rows = rows;
+        }
+
+        public int getRows()
+        {
+            return rows;
+        }
+    }
+
+    private Boards()
+    {
+    }
+
+    /**
+     * Fill bottom rows leaving one hole per row, so no line is cleared
+     */
+    public static void fill(Sea sea, Fill fill)
+    {
+        sea.clear();
+
+        for (int i = 0; i < fill.getRows(); i++)
+        {
+            int y = sea.getHeight() - 1 - i;
+            int hole = (i * 3) % sea.getWidth();
+            for (int x = 0; x < sea.getWidth(); x++)
+            {
+                if (x != hole)
+                {
+                    sea.add(x, y, COLORS[(x + y) % COLORS.length]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill bottom rows completely, every filled row is cleared by pumpout
+     */
+    public static void fillFull(Sea sea, int rows)
+    {
+        sea.clear();
+
+        for (int i = 0; i < rows; i++)
+        {
+            int y = sea.getHeight() - 1 - i;
+            for (int x = 0; x < sea.getWidth(); x++)
+            {
+                sea.add(x, y, COLORS[(x + y) % COLORS.length]);
+            }
+        }
+    }
+
+    /**
+     * Headless engine with access to its board
+     */
+    public static class Engine extends HeadlessTetrisEngine
+    {
+        public Engine(long seed)
+        {
+            super(WIDTH, HEIGHT, seed);
+        }
+
+        public Sea getBoard()
+        {
+            return getSeaBoard();
+        }
+
+        /**
+         * Start a new game on the given board and bring the first piece in
+         */
+        public synchronized void restart(Sea board)
+        {
+            stop();
+            getSeaBoard().copyFrom(board);
+            start();
+            step(1);
+        }
+    }
+}
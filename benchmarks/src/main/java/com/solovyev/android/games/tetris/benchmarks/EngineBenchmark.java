@@ -0,0 +1,134 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solovyev.android.games.tetris.engine.Sea;
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * Engine input, timer and sea access on boards of different fill
+ *
+ * Benchmarks restart the game on the starting board when the piece is gone or the game is over, the restart is
+ * included in the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark
+{
+    @Param({ "EMPTY", "HALF", "NEARLY_FULL" })
+    public Boards.Fill fill;
+
+    private Boards.Engine engine;
+    private Sea board;
+
+    @Setup
+    public void setUp()
+    {
+        engine = new Boards.Engine(1);
+        board = new Sea(Boards.WIDTH, Boards.HEIGHT);
+        Boards.fill(board, fill);
+        engine.restart(board);
+    }
+
+    private void restartIfNeeded()
+    {
+        if ((engine.getGameState() != TetrisEngine.GameState.RUNNING) || (engine.getPiece() == Piece.NULL))
+        {
+            engine.restart(board);
+        }
+    }
+
+    /**
+     * Left then right, so the piece stays in place
+     */
+    @Benchmark
+    public Piece movePieceLeftRight()
+    {
+        engine.movePieceLeft();
+        engine.movePieceRight();
+
+        return engine.getPiece();
+    }
+
+    @Benchmark
+    public Piece rotatePieceClockwise()
+    {
+        engine.rotatePieceClockwise();
+
+        return engine.getPiece();
+    }
+
+    /**
+     * Drop a piece and run the free fall until it is locked, the board is restored after every drop
+     */
+    @Benchmark
+    public int dropPiece()
+    {
+        restartIfNeeded();
+
+        engine.dropPiece();
+        while ((engine.getPiece() != Piece.NULL) && (engine.getGameState() == TetrisEngine.GameState.FREEFALL))
+        {
+            engine.timerEvent();
+        }
+
+        int res = engine.getPieceCount();
+
+        engine.restart(board);
+
+        return res;
+    }
+
+    @Benchmark
+    public int timerEvent()
+    {
+        restartIfNeeded();
+
+        engine.timerEvent();
+
+        return engine.getPieceCount();
+    }
+
+    /**
+     * Sea list when nothing changed since the previous call
+     */
+    @Benchmark
+    public List<Cell> getSea()
+    {
+        return engine.getSea();
+    }
+
+    /**
+     * Sea list right after a change, the list is rebuilt
+     */
+    @Benchmark
+    public List<Cell> getSeaChanged()
+    {
+        engine.getBoard().copyFrom(board);
+
+        return engine.getSea();
+    }
+}
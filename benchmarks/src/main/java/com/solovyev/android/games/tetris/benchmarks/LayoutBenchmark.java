@@ -0,0 +1,98 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solovyev.android.games.tetris.TetrisLayout;
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+
+
+/**
+ * View geometry: cell size, field placement, cell bounds and preview offset
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutBenchmark
+{
+    @Param({ "320x480", "480x800", "1080x1920" })
+    public String screen;
+
+    private int width;
+    private int height;
+    private TetrisLayout layout;
+    private List<Cell> cells;
+    private int[] res = new int[4];
+
+    @Setup
+    public void setUp()
+    {
+        String[] size = screen.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+
+        layout = new TetrisLayout();
+        layout.layout(width, height, Boards.WIDTH, Boards.HEIGHT);
+
+        cells = Piece.T.getCells();
+    }
+
+    @Benchmark
+    public int getCellSize()
+    {
+        return TetrisLayout.getCellSize(width, height, Boards.WIDTH, Boards.HEIGHT);
+    }
+
+    @Benchmark
+    public int[] layout()
+    {
+        layout.layout(width, height, Boards.WIDTH, Boards.HEIGHT);
+
+        return layout.getGlassBounds();
+    }
+
+    /**
+     * Bounds of every cell of the glass
+     */
+    @Benchmark
+    public int[] getCellBounds()
+    {
+        int[] glass = layout.getGlassBounds();
+        for (int y = 0; y < Boards.HEIGHT; y++)
+        {
+            for (int x = 0; x < Boards.WIDTH; x++)
+            {
+                TetrisLayout.getCellBounds(x, y, glass[0], glass[1], 0, 0, layout.getCellSize(), res);
+            }
+        }
+
+        return res;
+    }
+
+    @Benchmark
+    public int[] getPreviewCellOffset()
+    {
+        TetrisLayout.getPreviewCellOffset(cells, layout.getCellSize(), res);
+
+        return res;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solovyev.android.games.tetris.engine.Sea;
+
+
+/**
+ * Line clearing, the board is restored before every clear, restore alone is measured by copy()
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeaBenchmark
+{
+    @Param({ "0", "1", "4" })
+    public int fullRows;
+
+    @Param({ "EMPTY", "HALF", "NEARLY_FULL" })
+    public Boards.Fill fill;
+
+    private Sea template;
+    private Sea sea;
+
+    @Setup
+    public void setUp()
+    {
+        template = new Sea(Boards.WIDTH, Boards.HEIGHT);
+        Boards.fill(template, fill);
+
+        // Full rows go on top of the filled ones
+        Sea full = new Sea(Boards.WIDTH, Boards.HEIGHT);
+        Boards.fillFull(full, fill.getRows() + fullRows);
+        for (int y = 0; y < Boards.HEIGHT; y++)
+        {
+            if ((template.getRow(y) == 0) && (full.getRow(y) != 0))
+            {
+                for (int x = 0; x < Boards.WIDTH; x++)
+                {
+                    template.add(x, y, full.getColor(x, y));
+                }
+            }
+        }
+
+        sea = new Sea(Boards.WIDTH, Boards.HEIGHT);
+    }
+
+    @Benchmark
+    public int copy()
+    {
+        sea.copyFrom(template);
+
+        return sea.getCellCount();
+    }
+
+    @Benchmark
+    public int pumpout()
+    {
+        sea.copyFrom(template);
+
+        return sea.pumpout();
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.simulator;
+
+import com.solovyev.android.games.tetris.engine.PieceRotations;
+import com.solovyev.android.games.tetris.engine.PlacementSearch;
+import com.solovyev.android.games.tetris.engine.TetrisSnapshot;
+
+
+/**
+ * Player going where the autoplay bot would, searched on the calling thread
+ */
+public class BotPlayer extends Player
+{
+    private PlacementSearch placementSearch;
+    private int[] nextState = new int[4];
+    private int[] placement = new int[2];
+
+    public BotPlayer(int width, int height, int reactionTicks, int inputTicks)
+    {
+        super(reactionTicks, inputTicks);
+
+        placementSearch = new PlacementSearch(width, height);
+    }
+
+    @Override
+    protected void plan(TetrisSnapshot snapshot, int[] state)
+    {
+        int nextShape = PieceRotations.findState(snapshot.getNextPiece(), nextState) ? nextState[0] : -1;
+        if (placementSearch.find(snapshot.getSeaRows(), state[0], state[3], nextShape, placement))
+        {
+            planPlacement(state, placement[0], placement[1]);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.simulator;
+
+import java.util.Arrays;
+
+
+/**
+ * Values of one measure over a batch of games
+ *
+ * Every game writes its own slot, so games may finish in any order and from any thread, the values are sorted
+ * once when the batch is done.
+ */
+public class Distribution
+{
+    private long[] values;
+    private boolean sorted = false;
+
+    public Distribution(int count)
+    {
+        values = new long[count];
+    }
+
+    public void set(int index, long value)
+    {
+        values[index] = value;
+        sorted = false;
+    }
+
+    public int getCount()
+    {
+        return values.length;
+    }
+
+    public double getMean()
+    {
+        if (values.length == 0)
+        {
+            return 0;
+        }
+
+        double sum = 0;
+        for (long value : values)
+        {
+            sum += value;
+        }
+
+        return sum / values.length;
+    }
+
+    /**
+     * Get value at a percentile, nearest rank
+     *
+     * @param percentile -- from 0 to 100
+     */
+    public long getPercentile(double percentile)
+    {
+        if (values.length == 0)
+        {
+            return 0;
+        }
+
+        sort();
+
+        int rank = (int) Math.ceil((percentile / 100) * values.length);
+
+        return values[Math.max(0, Math.min(rank - 1, values.length - 1))];
+    }
+
+    public int getCountAtLeast(long value)
+    {
+        int res = 0;
+        for (long v : values)
+        {
+            if (v >= value)
+            {
+                res++;
+            }
+        }
+
+        return res;
+    }
+
+    public long getMin()
+    {
+        return getPercentile(0);
+    }
+
+    public long getMax()
+    {
+        return getPercentile(100);
+    }
+
+    private void sort()
+    {
+        if (!sorted)
+        {
+            Arrays.sort(values);
+            sorted = true;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.simulator;
+
+import com.solovyev.android.games.tetris.engine.HeadlessTetrisEngine;
+import com.solovyev.android.games.tetris.engine.PieceRotations;
+import com.solovyev.android.games.tetris.engine.TetrisRecorder;
+import com.solovyev.android.games.tetris.engine.TetrisSnapshot;
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * Simulated player with human timing
+ *
+ * When a piece appears the player plans rotations, moves and a drop, then waits the reaction time and sends one
+ * input every input interval while the piece keeps falling. Fast gravity leaves a slow player no time to get the
+ * piece where it was planned to go, which is what makes the speed curve matter in simulated games.
+ */
+public abstract class Player
+{
+    private int reactionTicks;
+    private int inputTicks;
+    private int[] state = new int[4];
+    private TetrisRecorder.Action[] plan = new TetrisRecorder.Action[16];
+    private int planLength;
+    private int planPosition;
+    private int playedPieceCount = -1;
+    private long nextInputTick;
+
+    /**
+     * @param reactionTicks -- ticks from a new piece to the first input
+     * @param inputTicks -- ticks between inputs, 0 to send all inputs at once
+     */
+    protected Player(int reactionTicks, int inputTicks)
+    {
+        this.reactionTicks = reactionTicks;
+        this.inputTicks = inputTicks;
+    }
+
+    /**
+     * Send inputs due at the current engine tick, called before every tick
+     */
+    public void play(HeadlessTetrisEngine engine)
+    {
+        TetrisSnapshot snapshot = engine.getSnapshot();
+        if (snapshot.getGameState() != TetrisEngine.GameState.RUNNING)
+        {
+            return;
+        }
+
+        long tick = engine.getGameTick();
+        if (snapshot.getPieceCount() != playedPieceCount)
+        {
+            playedPieceCount = snapshot.getPieceCount();
+            planLength = 0;
+            planPosition = 0;
+            nextInputTick = tick + reactionTicks;
+
+            if (PieceRotations.findState(snapshot.getPiece(), state))
+            {
+                plan(snapshot, state);
+            }
+        }
+
+        while ((planPosition < planLength) && (tick >= nextInputTick))
+        {
+            apply(engine, plan[planPosition++]);
+            nextInputTick += inputTicks;
+        }
+    }
+
+    /**
+     * Plan the current piece
+     *
+     * @param snapshot -- engine state with the new piece
+     * @param state -- piece shape, rotation, column and row as given by PieceRotations.findState()
+     */
+    protected abstract void plan(TetrisSnapshot snapshot, int[] state);
+
+    /**
+     * Plan inputs taking the piece to a rotation and column and dropping it there
+     */
+    protected void planPlacement(int[] state, int rotation, int x)
+    {
+        int turns = (rotation - state[1]) & (PieceRotations.ROTATION_COUNT - 1);
+        if (turns == (PieceRotations.ROTATION_COUNT - 1))
+        {
+            addInput(TetrisRecorder.Action.ROTATE_COUNTERCLOCKWISE);
+        }
+        else
+        {
+            for (int i = 0; i < turns; i++)
+            {
+                addInput(TetrisRecorder.Action.ROTATE_CLOCKWISE);
+            }
+        }
+
+        for (int i = state[2]; i < x; i++)
+        {
+            addInput(TetrisRecorder.Action.MOVE_RIGHT);
+        }
+        for (int i = state[2]; i > x; i--)
+        {
+            addInput(TetrisRecorder.Action.MOVE_LEFT);
+        }
+
+        addInput(TetrisRecorder.Action.DROP);
+    }
+
+    private void addInput(TetrisRecorder.Action action)
+    {
+        if (planLength == plan.length)
+        {
+            TetrisRecorder.Action[] newPlan = new TetrisRecorder.Action[planLength * 2];
+            System.arraycopy(plan, 0, newPlan, 0, planLength);
+            plan = newPlan;
+        }
+
+        plan[planLength++] = action;
+    }
+
+    private static void apply(HeadlessTetrisEngine engine, TetrisRecorder.Action action)
+    {
+        switch (action)
+        {
+        case MOVE_LEFT:
+            engine.movePieceLeft();
+            break;
+        case MOVE_RIGHT:
+            engine.movePieceRight();
+            break;
+        case ROTATE_CLOCKWISE:
+            engine.rotatePieceClockwise();
+            break;
+        case ROTATE_COUNTERCLOCKWISE:
+            engine.rotatePieceCounterclockwise();
+            break;
+        case DROP:
+            engine.dropPiece();
+            break;
+        default:
+            break;
+        }
+    }
+}
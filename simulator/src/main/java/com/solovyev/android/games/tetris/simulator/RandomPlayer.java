@@ -0,0 +1,38 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.simulator;
+
+import java.util.Random;
+
+import com.solovyev.android.games.tetris.engine.PieceRotations;
+import com.solovyev.android.games.tetris.engine.TetrisSnapshot;
+
+
+/**
+ * Player dropping pieces at a random rotation and column, the floor any speed curve should be tried against
+ */
+public class RandomPlayer extends Player
+{
+    private int width;
+    private Random random;
+
+    public RandomPlayer(int width, long seed, int reactionTicks, int inputTicks)
+    {
+        super(reactionTicks, inputTicks);
+
+        this.width = width;
+        random = new Random(seed);
+    }
+
+    @Override
+    protected void plan(TetrisSnapshot snapshot, int[] state)
+    {
+        int shape = state[0];
+        int rotation = random.nextInt(PieceRotations.ROTATION_COUNT);
+        int minX = -PieceRotations.getLeft(shape, rotation);
+        int maxX = width - PieceRotations.getRight(shape, rotation);
+
+        planPlacement(state, rotation, minX + random.nextInt(maxX - minX + 1));
+    }
+}
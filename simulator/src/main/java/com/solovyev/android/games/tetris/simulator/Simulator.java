@@ -0,0 +1,318 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.simulator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.solovyev.android.games.tetris.engine.HeadlessTetrisEngine;
+import com.solovyev.android.games.tetris.engine.SpeedCurve;
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * Plays batches of headless games over a grid of speed curves and reports how long games last and how they score
+ *
+ * Every grid point plays the same seeds, so points are compared on the same piece sequences. Games are handed out
+ * to one worker per core from a shared counter, workers share nothing else while playing, so the run scales with
+ * the number of cores.
+ */
+public class Simulator
+{
+    private static final double[] PERCENTILES = { 10, 50, 90, 99 };
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private Map<String, String> options = new LinkedHashMap<String, String>();
+
+    private int width;
+    private int height;
+    private int games;
+    private int threads;
+    private String player;
+    private int reactionTicks;
+    private int inputTicks;
+    private int maxPieces;
+    private long seed;
+    private List<SpeedCurve> speedCurves = new ArrayList<SpeedCurve>();
+
+    // Results per speed curve
+    private Distribution[] lengths;
+    private Distribution[] scores;
+    private Distribution[] lines;
+    private Distribution[] pieces;
+    private Distribution[] speeds;
+    private int timerTick;
+    private long totalTicks;
+
+    public static void main(String[] args)
+    {
+        Simulator simulator = new Simulator();
+        try
+        {
+            simulator.parse(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        simulator.run();
+        long elapsed = System.nanoTime() - start;
+
+        simulator.report(System.out, elapsed);
+    }
+
+    private static void printUsage(PrintStream out)
+    {
+        out.println("Usage: Simulator [option value]...");
+        out.println("  -games n                games per speed curve, default 200");
+        out.println("  -threads n              worker threads, default number of cores");
+        out.println("  -player bot|random      player, default bot");
+        out.println("  -reaction ticks         ticks from a new piece to the first input, default 10");
+        out.println("  -inputInterval ticks    ticks between inputs, default 4");
+        out.println("  -maxPieces n            pieces to stop a game at, default 2000");
+        out.println("  -seed n                 seed of the first game, default 1");
+        out.println("  -width n -height n      glass size, default 10 by 20");
+        out.println("Speed curve grid, comma separated values, every combination is played:");
+        out.println("  -initialDelay ticks     default " + SpeedCurve.DEFAULT.getInitialDelay());
+        out.println("  -accelerationFactor x   default " + SpeedCurve.DEFAULT.getAccelerationFactor());
+        out.println("  -scorePerSpeed n        default " + SpeedCurve.DEFAULT.getScorePerSpeed());
+        out.println("  -lineCost n             default " + SpeedCurve.DEFAULT.getLineCost());
+        out.println("  -pieceCost n            default " + SpeedCurve.DEFAULT.getPieceCost());
+    }
+
+    private void parse(String[] args)
+    {
+        if ((args.length % 2) != 0)
+        {
+            throw new IllegalArgumentException("option without value: " + args[args.length - 1]);
+        }
+
+        for (int i = 0; i < args.length; i += 2)
+        {
+            if (!args[i].startsWith("-"))
+            {
+                throw new IllegalArgumentException("not an option: " + args[i]);
+            }
+            options.put(args[i].substring(1), args[i + 1]);
+        }
+
+        width = getInt("width", 10);
+        height = getInt("height", 20);
+        games = getInt("games", 200);
+        threads = getInt("threads", Runtime.getRuntime().availableProcessors());
+        player = getString("player", "bot");
+        reactionTicks = getInt("reaction", 10);
+        inputTicks = getInt("inputInterval", 4);
+        maxPieces = getInt("maxPieces", 2000);
+        seed = Long.parseLong(getString("seed", "1"));
+
+        if (!player.equals("bot") && !player.equals("random"))
+        {
+            throw new IllegalArgumentException("unknown player: " + player);
+        }
+        if ((games <= 0) || (threads <= 0) || (maxPieces <= 0) || (reactionTicks < 0) || (inputTicks < 0))
+        {
+            throw new IllegalArgumentException("games, threads and max pieces should be positive, player times not negative");
+        }
+
+        SpeedCurve defaultCurve = SpeedCurve.DEFAULT;
+        for (String initialDelay : getValues("initialDelay", String.valueOf(defaultCurve.getInitialDelay())))
+        {
+            for (String accelerationFactor : getValues("accelerationFactor", String.valueOf(defaultCurve.getAccelerationFactor())))
+            {
+                for (String scorePerSpeed : getValues("scorePerSpeed", String.valueOf(defaultCurve.getScorePerSpeed())))
+                {
+                    for (String lineCost : getValues("lineCost", String.valueOf(defaultCurve.getLineCost())))
+                    {
+                        for (String pieceCost : getValues("pieceCost", String.valueOf(defaultCurve.getPieceCost())))
+                        {
+                            speedCurves.add(new SpeedCurve(Integer.parseInt(initialDelay), Double.parseDouble(accelerationFactor), Integer
+                                    .parseInt(scorePerSpeed), Integer.parseInt(lineCost), Integer.parseInt(pieceCost)));
+                        }
+                    }
+                }
+            }
+        }
+
+        if (!options.isEmpty())
+        {
+            throw new IllegalArgumentException("unknown options: " + options.keySet());
+        }
+    }
+
+    /**
+     * Take an option out of the parsed ones, so the ones left over are unknown
+     */
+    private String getString(String name, String defaultValue)
+    {
+        String res = options.remove(name);
+
+        return (res != null) ? res : defaultValue;
+    }
+
+    private int getInt(String name, int defaultValue)
+    {
+        return Integer.parseInt(getString(name, String.valueOf(defaultValue)));
+    }
+
+    private String[] getValues(String name, String defaultValue)
+    {
+        return getString(name, defaultValue).split(",");
+    }
+
+    public void run()
+    {
+        int pointCount = speedCurves.size();
+        lengths = new Distribution[pointCount];
+        scores = new Distribution[pointCount];
+        lines = new Distribution[pointCount];
+        pieces = new Distribution[pointCount];
+        speeds = new Distribution[pointCount];
+        for (int i = 0; i < pointCount; i++)
+        {
+            lengths[i] = new Distribution(games);
+            scores[i] = new Distribution(games);
+            lines[i] = new Distribution(games);
+            pieces[i] = new Distribution(games);
+            speeds[i] = new Distribution(games);
+        }
+        timerTick = new HeadlessTetrisEngine(width, height, seed).getTimerTick();
+
+        final AtomicInteger nextGame = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>(threads);
+        for (int i = 0; i < threads; i++)
+        {
+            futures.add(executor.submit(new Worker(nextGame)));
+        }
+
+        try
+        {
+            for (Future<Long> future : futures)
+            {
+                totalTicks += future.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("simulation interrupted");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("simulation failed: " + e.getCause(), e.getCause());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Play one game, results go to the slot of the game in the distributions of the speed curve
+     *
+     * @return -- number of ticks played
+     */
+    private long play(int point, int game)
+    {
+        HeadlessTetrisEngine engine = new HeadlessTetrisEngine(width, height, seed + game, speedCurves.get(point));
+        Player gamePlayer = player.equals("bot") ? new BotPlayer(width, height, reactionTicks, inputTicks) : new RandomPlayer(width, seed + game,
+                reactionTicks, inputTicks);
+
+        engine.start();
+        while ((engine.getGameState() != TetrisEngine.GameState.GAMEOVER) && (engine.getPieceCount() < maxPieces))
+        {
+            gamePlayer.play(engine);
+            engine.step(1);
+        }
+
+        long ticks = engine.getGameTick();
+        lengths[point].set(game, ticks * engine.getTimerTick());
+        scores[point].set(game, engine.getScore());
+        lines[point].set(game, engine.getLineCount());
+        pieces[point].set(game, engine.getPieceCount());
+        speeds[point].set(game, engine.getSpeed());
+
+        return ticks;
+    }
+
+    private class Worker implements Callable<Long>
+    {
+        private AtomicInteger nextGame;
+
+        public Worker(AtomicInteger nextGame)
+        {
+            this.nextGame = nextGame;
+        }
+
+        @Override
+        public Long call()
+        {
+            long res = 0;
+            int gameCount = speedCurves.size() * games;
+            int i;
+            while ((i = nextGame.getAndIncrement()) < gameCount)
+            {
+                res += play(i / games, i % games);
+            }
+
+            return res;
+        }
+    }
+
+    public void report(PrintStream out, long elapsedNanos)
+    {
+        double seconds = elapsedNanos / 1e9;
+        int gameCount = speedCurves.size() * games;
+
+        out.println("player " + player + ", reaction " + reactionTicks + " ticks, input interval " + inputTicks + " ticks, max pieces " + maxPieces + ", "
+                + width + "x" + height + ", seeds " + seed + ".." + (seed + games - 1));
+        out.printf("%d games on %d threads in %.1f s, %.1f games/s, %.2fM ticks/s, tick %d ms%n", gameCount, threads, seconds, gameCount / seconds,
+                totalTicks / seconds / 1e6, timerTick);
+
+        for (int i = 0; i < speedCurves.size(); i++)
+        {
+            out.println();
+            out.println(speedCurves.get(i));
+
+            out.println("  games reaching max pieces: " + pieces[i].getCountAtLeast(maxPieces));
+
+            out.printf("  %-10s %10s %10s", "", "mean", "min");
+            for (double percentile : PERCENTILES)
+            {
+                out.printf(" %10s", "p" + (int) percentile);
+            }
+            out.printf(" %10s%n", "max");
+
+            printRow(out, "length, s", lengths[i], MILLIS_PER_SECOND);
+            printRow(out, "score", scores[i], 1);
+            printRow(out, "lines", lines[i], 1);
+            printRow(out, "pieces", pieces[i], 1);
+            printRow(out, "speed", speeds[i], 1);
+        }
+    }
+
+    private static void printRow(PrintStream out, String name, Distribution distribution, long divisor)
+    {
+        out.printf("  %-10s %10.1f %10.1f", name, distribution.getMean() / divisor, (double) distribution.getMin() / divisor);
+        for (double percentile : PERCENTILES)
+        {
+            out.printf(" %10.1f", (double) distribution.getPercentile(percentile) / divisor);
+        }
+        out.printf(" %10.1f%n", (double) distribution.getMax() / divisor);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+
+/**
+ * Cell images scaled to one cell size and packed side by side into a single bitmap
+ *
+ * Atlases of recently used sizes are kept, so going back to a previous screen configuration, e.g. after
+ * rotation, does not scale the images again.
+ */
+public class CellAtlas
+{
+    private static final int CACHE_SIZE = 3;
+
+    private static final Map<Integer, CellAtlas> cache = new LinkedHashMap<Integer, CellAtlas>(CACHE_SIZE + 1, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CellAtlas> eldest)
+            {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    private int cellSize;
+    private Bitmap bitmap;
+    private Rect[] sourceRects;
+
+    private CellAtlas(Drawable[] drawables, int cellSize)
+    {
+        this.cellSize = cellSize;
+
+        bitmap = Bitmap.createBitmap(cellSize * drawables.length, cellSize, Bitmap.Config.ARGB_8888);
+        sourceRects = new Rect[drawables.length];
+
+        Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < drawables.length; i++)
+        {
+            sourceRects[i] = new Rect(i * cellSize, 0, (i + 1) * cellSize, cellSize);
+
+            // Drawables are shared, their bounds are put back
+            Rect bounds = drawables[i].copyBounds();
+            drawables[i].setBounds(sourceRects[i]);
+            drawables[i].draw(canvas);
+            drawables[i].setBounds(bounds);
+        }
+    }
+
+    /**
+     * Get atlas for the cell size, made on first use
+     *
+     * @param drawables -- cell images indexed by color ordinal, the same ones on every call
+     * @param cellSize -- cell size
+     */
+    public static CellAtlas getAtlas(Drawable[] drawables, int cellSize)
+    {
+        synchronized (cache)
+        {
+            CellAtlas res = cache.get(cellSize);
+            if (res == null)
+            {
+                res = new CellAtlas(drawables, cellSize);
+                cache.put(cellSize, res);
+            }
+
+            return res;
+        }
+    }
+
+    public int getCellSize()
+    {
+        return cellSize;
+    }
+
+    public Bitmap getBitmap()
+    {
+        return bitmap;
+    }
+
+    /**
+     * Get image bounds in the atlas, the rectangle should not be modified
+     */
+    public Rect getSourceRect(int colorIndex)
+    {
+        return sourceRects[colorIndex];
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import android.os.Debug;
+
+
+/**
+ * Timings of recent frames
+ *
+ * A ring keeps start time, draw time, interval since the previous frame and garbage collections in that interval
+ * for the last CAPACITY frames, percentiles are taken over the ring. Janky frames and collections are counted
+ * since start(). Recording does not allocate, summary lines are made at most every SUMMARY_PERIOD, so the overlay
+ * showing them costs next to nothing.
+ *
+ * Jank is counted two ways. A slow frame took longer than one display refresh to draw. A late frame started more
+ * than LATE_FACTOR refreshes after it was due, that is after the previous frame or after it was requested, whichever
+ * is later, e.g. because the thread drawing it was busy elsewhere. Frames are drawn only when something changes, so
+ * a long interval with no request in it is not counted.
+ */
+public class FrameStats
+{
+    public static final int CAPACITY = 256;
+
+    private static final long NANOS_PER_MICRO = 1000;
+    private static final long REFRESH_PERIOD = 1000000000L / 60;
+    private static final double LATE_FACTOR = 1.5;
+    private static final long LATE_TIME = (long) (REFRESH_PERIOD * LATE_FACTOR);
+    private static final byte SLOW = 1;
+    private static final byte LATE = 2;
+    private static final long SUMMARY_PERIOD = 500000000L;
+
+    private long[] startTimes = new long[CAPACITY];
+    private int[] drawTimes = new int[CAPACITY];
+    private int[] intervals = new int[CAPACITY];
+    private int[] gcCounts = new int[CAPACITY];
+    private byte[] jankFlags = new byte[CAPACITY];
+    private int position;
+    private int count;
+    private int[] sortBuffer = new int[CAPACITY];
+
+    private long frameCount;
+    private long slowCount;
+    private long lateCount;
+    private int startGcCount;
+    private int lastGcCount;
+    private long lastStartTime = -1;
+    private long requestTime = -1;
+    private long summaryTime;
+
+    /**
+     * Start counting garbage collections, frames are recorded whether started or not
+     */
+    public synchronized void start()
+    {
+        Debug.startAllocCounting();
+        startGcCount = Debug.getGlobalGcInvocationCount();
+        lastGcCount = startGcCount;
+        frameCount = 0;
+        slowCount = 0;
+        lateCount = 0;
+    }
+
+    public synchronized void stop()
+    {
+        Debug.stopAllocCounting();
+    }
+
+    /**
+     * Note that a frame is wanted, only the first request before the frame counts, may be called from any thread
+     *
+     * @param time -- System.nanoTime() of the request
+     */
+    public synchronized void frameRequested(long time)
+    {
+        if (requestTime < 0)
+        {
+            requestTime = time;
+        }
+    }
+
+    /**
+     * Forget the request, it turned out nothing had to be drawn
+     */
+    public synchronized void frameSkipped()
+    {
+        requestTime = -1;
+    }
+
+    /**
+     * @param startTime -- System.nanoTime() when the frame was started
+     * @param endTime -- System.nanoTime() when the frame was done
+     */
+    public synchronized void record(long startTime, long endTime)
+    {
+        int gcCount = Debug.getGlobalGcInvocationCount();
+
+        byte flags = 0;
+        if ((endTime - startTime) > REFRESH_PERIOD)
+        {
+            flags |= SLOW;
+            slowCount++;
+        }
+        if ((requestTime >= 0) && (requestTime <= startTime) && ((startTime - Math.max(requestTime, lastStartTime)) > LATE_TIME))
+        {
+            flags |= LATE;
+            lateCount++;
+        }
+
+        startTimes[position] = startTime;
+        drawTimes[position] = toMicros(endTime - startTime);
+        intervals[position] = (lastStartTime >= 0) ? toMicros(startTime - lastStartTime) : 0;
+        gcCounts[position] = gcCount - lastGcCount;
+        jankFlags[position] = flags;
+        position = (position + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+
+        frameCount++;
+        lastGcCount = gcCount;
+        lastStartTime = startTime;
+
+        // A request which came while drawing is for the next frame
+        if (requestTime <= startTime)
+        {
+            requestTime = -1;
+        }
+    }
+
+    private static int getFlag(byte flags, byte flag)
+    {
+        return ((flags & flag) != 0) ? 1 : 0;
+    }
+
+    private static int toMicros(long nanos)
+    {
+        return (int) Math.min(nanos / NANOS_PER_MICRO, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Tell if the summary is older than the summary period, the summary time is moved on if it is
+     */
+    public synchronized boolean isSummaryDue(long time)
+    {
+        if ((time - summaryTime) < SUMMARY_PERIOD)
+        {
+            return false;
+        }
+
+        summaryTime = time;
+
+        return true;
+    }
+
+    /**
+     * Get overlay lines: draw time and interval percentiles over the ring, slow and late frames and collections
+     */
+    public synchronized String[] getSummary()
+    {
+        return new String[] {
+                String.format("draw p50 %.1f p95 %.1f p99 %.1f ms", getPercentile(drawTimes, 50), getPercentile(drawTimes, 95), getPercentile(drawTimes, 99)),
+                String.format("interval p50 %.1f p95 %.1f p99 %.1f ms", getPercentile(intervals, 50), getPercentile(intervals, 95), getPercentile(
+                        intervals, 99)),
+                "slow " + slowCount + ", late " + lateCount + " of " + frameCount + ", gc " + (lastGcCount - startGcCount) };
+    }
+
+    /**
+     * Get a percentile of recorded values in milliseconds
+     */
+    private double getPercentile(int[] values, double percentile)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        System.arraycopy(values, 0, sortBuffer, 0, count);
+        Arrays.sort(sortBuffer, 0, count);
+
+        int rank = (int) Math.ceil((percentile / 100) * count);
+
+        return sortBuffer[Math.max(rank - 1, 0)] / 1000.0;
+    }
+
+    /**
+     * Get recorded frames as CSV, oldest first, times in milliseconds, slow and late are 1 for janky frames
+     */
+    public synchronized String toCsv()
+    {
+        StringBuilder res = new StringBuilder("start,draw,interval,slow,late,gc\n");
+
+        // Decimal point whatever the device locale is, commas separate fields
+        int first = (position - count + CAPACITY) % CAPACITY;
+        long firstStartTime = startTimes[first];
+        for (int i = 0; i < count; i++)
+        {
+            int index = (first + i) % CAPACITY;
+            res.append(String.format(Locale.US, "%.3f,%.3f,%.3f,%d,%d,%d\n", (startTimes[index] - firstStartTime) / 1e6,
+                    drawTimes[index] / 1000.0, intervals[index] / 1000.0, getFlag(jankFlags[index], SLOW), getFlag(jankFlags[index], LATE),
+                    gcCounts[index]));
+        }
+
+        return res.toString();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+
+
+/**
+ * Update run on the UI thread, requested from any thread
+ *
+ * The update is posted only if it is not waiting to run already, so a burst of requests makes one UI thread
+ * message and nothing is allocated per request. The pending flag is dropped before the update runs, a request
+ * coming while it runs posts it again, so no change is missed.
+ */
+public class PendingUpdate implements Runnable
+{
+    private Runnable update;
+    private Handler handler = new Handler(Looper.getMainLooper());
+    private AtomicBoolean pending = new AtomicBoolean();
+
+    public PendingUpdate(Runnable update)
+    {
+        this.update = update;
+    }
+
+    public void request()
+    {
+        if (pending.compareAndSet(false, true))
+        {
+            handler.post(this);
+        }
+    }
+
+    /**
+     * Drop the update if it was not run yet
+     */
+    public void cancel()
+    {
+        handler.removeCallbacks(this);
+        pending.set(false);
+    }
+
+    @Override
+    public void run()
+    {
+        pending.set(false);
+        update.run();
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Score file
+ *
+ * Format: magic, version, record size, then fixed size records of score, timestamp, name length and name chars,
+ * in the order the games were played. Records are read by position in pages and new ones are appended, so the
+ * file is never loaded as a whole. A partly written last record is dropped on open. Writes are synced to disk
+ * without the file lock, so reading does not wait for the disk, append() and clear() should be called from one
+ * thread.
+ *
+ * Tables written by older versions, a serialized list or a version 1 file of variable size entries, are
+ * converted on open. The converted file is written next to the old one and renamed over it, so a crash during
+ * conversion leaves the old table in place.
+ */
+public class ScoreFile
+{
+    public static final int MAX_NAME_LENGTH = 16;
+
+    private static final int MAGIC = 0x54534352;
+    private static final int VERSION = 2;
+    private static final int TABLE_VERSION = 1;
+    private static final int SERIALIZATION_MAGIC = 0xACED;
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 4 + 8 + 2 + (MAX_NAME_LENGTH * 2);
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private int count;
+    private byte[] buffer = new byte[RECORD_SIZE];
+
+    public ScoreFile(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Open the file, create or convert it if needed
+     */
+    public synchronized void open() throws IOException
+    {
+        if (!file.exists())
+        {
+            write(new ArrayList<ScoreManager.ScoreEntry>());
+        }
+        else if (getVersion() != VERSION)
+        {
+            List<ScoreManager.ScoreEntry> scores = readTable();
+
+            // Older tables are kept sorted by score
+            Collections.sort(scores, new Comparator<ScoreManager.ScoreEntry>()
+                {
+                    @Override
+                    public int compare(ScoreManager.ScoreEntry a, ScoreManager.ScoreEntry b)
+                    {
+                        return a.getTimestamp().compareTo(b.getTimestamp());
+                    }
+                });
+
+            write(scores);
+        }
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        count = (int) ((randomAccessFile.length() - HEADER_SIZE) / RECORD_SIZE);
+        randomAccessFile.setLength(HEADER_SIZE + ((long) count * RECORD_SIZE));
+    }
+
+    public synchronized void close()
+    {
+        if (randomAccessFile != null)
+        {
+            close(randomAccessFile);
+            randomAccessFile = null;
+        }
+    }
+
+    public synchronized int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Read consecutive records
+     *
+     * @param first -- position of the first record
+     * @param res -- array to put records to
+     * @return -- number of records read
+     */
+    public synchronized int read(int first, ScoreManager.ScoreEntry[] res) throws IOException
+    {
+        int n = Math.max(0, Math.min(res.length, count - first));
+        if (n == 0)
+        {
+            return 0;
+        }
+
+        if (buffer.length < n * RECORD_SIZE)
+        {
+            buffer = new byte[n * RECORD_SIZE];
+        }
+
+        randomAccessFile.seek(HEADER_SIZE + ((long) first * RECORD_SIZE));
+        randomAccessFile.readFully(buffer, 0, n * RECORD_SIZE);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 0, n * RECORD_SIZE));
+        for (int i = 0; i < n; i++)
+        {
+            res[i] = readRecord(in);
+        }
+
+        return n;
+    }
+
+    /**
+     * Append a record, it is counted once it is on disk, a failed record is overwritten by the next one
+     */
+    public void append(ScoreManager.ScoreEntry entry) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(RECORD_SIZE);
+        writeRecord(new DataOutputStream(bytes), entry);
+
+        FileDescriptor fd;
+        synchronized (this)
+        {
+            randomAccessFile.seek(HEADER_SIZE + ((long) count * RECORD_SIZE));
+            randomAccessFile.write(bytes.toByteArray());
+            fd = randomAccessFile.getFD();
+        }
+
+        fd.sync();
+
+        synchronized (this)
+        {
+            count++;
+        }
+    }
+
+    public void clear() throws IOException
+    {
+        FileDescriptor fd;
+        synchronized (this)
+        {
+            randomAccessFile.setLength(HEADER_SIZE);
+            count = 0;
+            fd = randomAccessFile.getFD();
+        }
+
+        fd.sync();
+    }
+
+    private ScoreManager.ScoreEntry readRecord(DataInputStream in) throws IOException
+    {
+        int score = in.readInt();
+        long timestamp = in.readLong();
+        int nameLength = Math.min(in.readShort(), MAX_NAME_LENGTH);
+
+        char[] name = new char[MAX_NAME_LENGTH];
+        for (int i = 0; i < MAX_NAME_LENGTH; i++)
+        {
+            name[i] = in.readChar();
+        }
+
+        return new ScoreManager.ScoreEntry(new String(name, 0, nameLength), score, timestamp);
+    }
+
+    private void writeRecord(DataOutputStream out, ScoreManager.ScoreEntry entry) throws IOException
+    {
+        String name = entry.getName();
+        int nameLength = Math.min(name.length(), MAX_NAME_LENGTH);
+
+        out.writeInt(entry.getScore());
+        out.writeLong(entry.getTimestamp());
+        out.writeShort(nameLength);
+        for (int i = 0; i < MAX_NAME_LENGTH; i++)
+        {
+            out.writeChar((i < nameLength) ? name.charAt(i) : 0);
+        }
+    }
+
+    /**
+     * @return -- file format version, 0 for a serialized list
+     */
+    private int getVersion() throws IOException
+    {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            int magic = in.readInt();
+            if ((magic >>> 16) == SERIALIZATION_MAGIC)
+            {
+                return 0;
+            }
+            if (magic != MAGIC)
+            {
+                throw new IOException("not a score file: " + file);
+            }
+
+            return in.readInt();
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Read a whole table written by an older version
+     */
+    private List<ScoreManager.ScoreEntry> readTable() throws IOException
+    {
+        int version = getVersion();
+        if (version == 0)
+        {
+            return readSerializedTable();
+        }
+        if (version != TABLE_VERSION)
+        {
+            throw new IOException("unsupported score file version: " + version);
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            in.readInt();
+            in.readInt();
+
+            int n = in.readInt();
+            List<ScoreManager.ScoreEntry> res = new ArrayList<ScoreManager.ScoreEntry>(n);
+            for (int i = 0; i < n; i++)
+            {
+                String name = in.readUTF();
+                int score = in.readInt();
+                long timestamp = in.readLong();
+                res.add(new ScoreManager.ScoreEntry(name, score, timestamp));
+            }
+
+            return res;
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ScoreManager.ScoreEntry> readSerializedTable() throws IOException
+    {
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            return new ArrayList<ScoreManager.ScoreEntry>((List<ScoreManager.ScoreEntry>) in.readObject());
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IOException("error reading serialized score file: " + e);
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Write a whole file to a temporary file and rename it over the score file
+     */
+    private void write(List<ScoreManager.ScoreEntry> scores) throws IOException
+    {
+        File tempFile = new File(file.getPath() + TEMP_SUFFIX);
+
+        FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(RECORD_SIZE);
+            for (ScoreManager.ScoreEntry entry : scores)
+            {
+                writeRecord(out, entry);
+            }
+
+            out.flush();
+            fileOutputStream.getFD().sync();
+        }
+        finally
+        {
+            close(out);
+        }
+
+        if (!tempFile.renameTo(file))
+        {
+            tempFile.delete();
+            throw new IOException("error renaming " + tempFile + " to " + file);
+        }
+    }
+
+    private static void close(java.io.Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+}
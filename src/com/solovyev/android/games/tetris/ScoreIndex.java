@@ -0,0 +1,280 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+/**
+ * Rank index of scores
+ *
+ * Order statistic treap over score record ids, ordered by score from the highest, ties in the order the scores
+ * were added. Nodes live in parallel arrays indexed by record id, so a node costs a few ints and no object.
+ * Priorities are derived from the id hash. Every subtree also keeps the latest timestamp in it, which lets a
+ * search skip subtrees with no scores in a time range. Rank, select and insert take O(log n), top n scores since a
+ * given time take O(n log size).
+ */
+public class ScoreIndex
+{
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int count;
+    private int root = NIL;
+
+    private int[] left = new int[INITIAL_CAPACITY];
+    private int[] right = new int[INITIAL_CAPACITY];
+    private int[] size = new int[INITIAL_CAPACITY];
+    private int[] score = new int[INITIAL_CAPACITY];
+    private long[] timestamp = new long[INITIAL_CAPACITY];
+    private long[] maxTimestamp = new long[INITIAL_CAPACITY];
+
+    // Split results
+    private int splitLeft;
+    private int splitRight;
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public int getScore(int id)
+    {
+        return score[id];
+    }
+
+    public long getTimestamp(int id)
+    {
+        return timestamp[id];
+    }
+
+    /**
+     * Add a score
+     *
+     * @return -- record id of the score, ids are given out in order starting from 0
+     */
+    public int add(int score, long timestamp)
+    {
+        ensureCapacity(count + 1);
+
+        int id = count++;
+        left[id] = NIL;
+        right[id] = NIL;
+        size[id] = 1;
+        this.score[id] = score;
+        this.timestamp[id] = timestamp;
+        maxTimestamp[id] = timestamp;
+
+        root = insert(root, id);
+
+        return id;
+    }
+
+    public void clear()
+    {
+        count = 0;
+        root = NIL;
+    }
+
+    /**
+     * Get position a new score would take, after all equal scores
+     */
+    public int getRank(int score)
+    {
+        int res = 0;
+        int t = root;
+        while (t != NIL)
+        {
+            if (this.score[t] >= score)
+            {
+                res += getSize(left[t]) + 1;
+                t = right[t];
+            }
+            else
+            {
+                t = left[t];
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Get record id of the score at a position
+     */
+    public int get(int position)
+    {
+        if ((position < 0) || (position >= count))
+        {
+            throw new IndexOutOfBoundsException("position: " + position + ", count: " + count);
+        }
+
+        int t = root;
+        while (true)
+        {
+            int leftSize = getSize(left[t]);
+            if (position < leftSize)
+            {
+                t = left[t];
+            }
+            else if (position == leftSize)
+            {
+                return t;
+            }
+            else
+            {
+                position -= leftSize + 1;
+                t = right[t];
+            }
+        }
+    }
+
+    /**
+     * Get record ids of the best scores made at or after a given time
+     *
+     * @param since -- earliest timestamp
+     * @param res -- array to put ids to, highest score first
+     * @return -- number of ids put
+     */
+    public int getTop(long since, int[] res)
+    {
+        return collect(root, since, res, 0);
+    }
+
+    private int collect(int t, long since, int[] res, int n)
+    {
+        if ((t == NIL) || (n == res.length) || (maxTimestamp[t] < since))
+        {
+            return n;
+        }
+
+        n = collect(left[t], since, res, n);
+        if ((n < res.length) && (timestamp[t] >= since))
+        {
+            res[n++] = t;
+        }
+
+        return collect(right[t], since, res, n);
+    }
+
+    private boolean isBefore(int a, int b)
+    {
+        return (score[a] > score[b]) || ((score[a] == score[b]) && (a < b));
+    }
+
+    private int getPriority(int id)
+    {
+        int h = id * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+
+    private int getSize(int t)
+    {
+        return (t == NIL) ? 0 : size[t];
+    }
+
+    private void update(int t)
+    {
+        size[t] = getSize(left[t]) + getSize(right[t]) + 1;
+
+        long max = timestamp[t];
+        if ((left[t] != NIL) && (maxTimestamp[left[t]] > max))
+        {
+            max = maxTimestamp[left[t]];
+        }
+        if ((right[t] != NIL) && (maxTimestamp[right[t]] > max))
+        {
+            max = maxTimestamp[right[t]];
+        }
+        maxTimestamp[t] = max;
+    }
+
+    private int insert(int t, int id)
+    {
+        if (t == NIL)
+        {
+            return id;
+        }
+
+        if (getPriority(id) > getPriority(t))
+        {
+            split(t, id);
+            left[id] = splitLeft;
+            right[id] = splitRight;
+            update(id);
+
+            return id;
+        }
+
+        if (isBefore(id, t))
+        {
+            left[t] = insert(left[t], id);
+        }
+        else
+        {
+            right[t] = insert(right[t], id);
+        }
+        update(t);
+
+        return t;
+    }
+
+    /**
+     * Split a subtree into nodes before and after a node which is not in it
+     */
+    private void split(int t, int id)
+    {
+        if (t == NIL)
+        {
+            splitLeft = NIL;
+            splitRight = NIL;
+            return;
+        }
+
+        if (isBefore(t, id))
+        {
+            split(right[t], id);
+            right[t] = splitLeft;
+            update(t);
+            splitLeft = t;
+        }
+        else
+        {
+            split(left[t], id);
+            left[t] = splitRight;
+            update(t);
+            splitRight = t;
+        }
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity <= left.length)
+        {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, left.length * 2);
+        left = grow(left, newCapacity);
+        right = grow(right, newCapacity);
+        size = grow(size, newCapacity);
+        score = grow(score, newCapacity);
+        timestamp = grow(timestamp, newCapacity);
+        maxTimestamp = grow(maxTimestamp, newCapacity);
+    }
+
+    private static int[] grow(int[] array, int capacity)
+    {
+        int[] res = new int[capacity];
+        System.arraycopy(array, 0, res, 0, array.length);
+
+        return res;
+    }
+
+    private static long[] grow(long[] array, int capacity)
+    {
+        long[] res = new long[capacity];
+        System.arraycopy(array, 0, res, 0, array.length);
+
+        return res;
+    }
+}
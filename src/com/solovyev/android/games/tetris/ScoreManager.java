@@ -3,24 +3,40 @@
  */
 package com.solovyev.android.games.tetris;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import android.content.Context;
 import android.util.Log;
 
 
+/**
+ * Scores of all games played
+ *
+ * Scores are kept on disk in a {@link ScoreFile}, only {@link ScoreIndex}es of scores and timestamps are kept in
+ * memory. Names are read from the file in pages when asked for, without the manager lock, recently used pages are
+ * cached. New scores are appended on a writer thread in the order they were made, until then they are served from
+ * memory. A score which could not be written stays first in line and is tried again with the next one, so index
+ * ids stay equal to file positions.
+ *
+ * The file is opened and indexed on the writer thread too, until then only scores made since are known. Every game
+ * counts for rank and time queries, only named scores make the score table and the list of scores.
+ */
 public class ScoreManager
 {
     public static final int MAX_SCORES = 10;
     private static final String SCORE_FILE_NAME = "scores.bin";
+    private static final int PAGE_SIZE = 32;
+    private static final int CACHE_PAGES = 16;
+    private static final int LOAD_PAGE_SIZE = 256;
     private static ScoreManager instance;
 
     public static ScoreManager getInstance(Context context)
@@ -33,126 +49,496 @@ public class ScoreManager
         return instance;
     }
 
-    private Context context;
-    private List<ScoreEntry> scores;
+    private ScoreFile scoreFile;
+    private Ranking ranking = new Ranking();
+
+    // Used on the writer thread only
+    private boolean fileOpen = false;
+
+    // Records are first added to unwritten, the writer thread appends them to the file and moves writtenCount
+    private int writtenCount = 0;
+    private List<ScoreEntry> unwritten = new ArrayList<ScoreEntry>();
+    private int generation = 0;
+
+    // Changes whenever index ids change meaning, pages read for an older version are dropped
+    private int version = 0;
+
+    private Map<Integer, ScoreEntry[]> pages = new LinkedHashMap<Integer, ScoreEntry[]>(CACHE_PAGES + 1, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ScoreEntry[]> eldest)
+            {
+                return size() > CACHE_PAGES;
+            }
+        };
+
+    private ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread res = new Thread(runnable, "ScoreWriter");
+                res.setDaemon(true);
+
+                return res;
+            }
+        });
 
     private ScoreManager(Context context)
     {
-        this.context = context;
-        scores = readScores();
+        scoreFile = new ScoreFile(context.getFileStreamPath(SCORE_FILE_NAME));
+
+        writer.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    readScores();
+                }
+            });
     }
 
-    public List<ScoreEntry> getScores()
+    /**
+     * Get number of named scores
+     */
+    public synchronized int getCount()
     {
-        return new ArrayList<ScoreEntry>(scores);
+        return ranking.getNamedCount();
     }
 
-    public void addScore(String name, int score)
+    /**
+     * Get named score at a position, highest score first
+     */
+    public ScoreEntry getScore(int position)
     {
-        ScoreEntry entry = new ScoreEntry(name, score, System.currentTimeMillis());
+        List<ScoreEntry> res = getScores(position, 1);
+        if (res.isEmpty())
+        {
+            throw new IndexOutOfBoundsException("position: " + position);
+        }
+
+        return res.get(0);
+    }
+
+    /**
+     * Get named scores at consecutive positions
+     */
+    public List<ScoreEntry> getScores(int first, int count)
+    {
+        Map<Integer, ScoreEntry[]> readPages = new HashMap<Integer, ScoreEntry[]>();
+        while (true)
+        {
+            int page;
+            int pageVersion;
+            synchronized (this)
+            {
+                int last = Math.min(first + count, ranking.getNamedCount());
+                int[] ids = new int[Math.max(0, last - first)];
+                for (int i = 0; i < ids.length; i++)
+                {
+                    ids[i] = ranking.getNamedId(first + i);
+                }
 
-        scores = addScore(entry);
+                page = findUnreadPage(ids, ids.length, readPages);
+                if (page == -1)
+                {
+                    return getEntries(ids, ids.length, readPages);
+                }
+                pageVersion = version;
+            }
+
+            ScoreEntry[] entries = readPage(page, pageVersion);
+            if (entries != null)
+            {
+                readPages.put(page, entries);
+            }
+        }
+    }
 
-        writeScores(scores);
+    /**
+     * Get the score table, top MAX_SCORES scores
+     */
+    public List<ScoreEntry> getScores()
+    {
+        return getScores(0, MAX_SCORES);
     }
 
-    public int getScorePosition(int score)
+    /**
+     * Get the best scores made at or after a given time, unnamed ones included
+     */
+    public List<ScoreEntry> getTopScores(int count, long since)
     {
-        ScoreEntry entry = new ScoreEntry("", score, System.currentTimeMillis());
+        int[] ids = new int[count];
+        Map<Integer, ScoreEntry[]> readPages = new HashMap<Integer, ScoreEntry[]>();
+        while (true)
+        {
+            int page;
+            int pageVersion;
+            synchronized (this)
+            {
+                int n = ranking.getScores().getTop(since, ids);
 
-        List<ScoreEntry> res = addScore(entry);
+                page = findUnreadPage(ids, n, readPages);
+                if (page == -1)
+                {
+                    return getEntries(ids, n, readPages);
+                }
+                pageVersion = version;
+            }
 
-        return res.indexOf(entry);
+            ScoreEntry[] entries = readPage(page, pageVersion);
+            if (entries != null)
+            {
+                readPages.put(page, entries);
+            }
+        }
     }
 
-    private List<ScoreEntry> addScore(ScoreEntry entry)
+    /**
+     * Get position a new score would take among all scores
+     */
+    public synchronized int getRank(int score)
     {
-        ArrayList<ScoreEntry> res = (ArrayList<ScoreEntry>) getScores();
+        return ranking.getScores().getRank(score);
+    }
 
-        res.add(entry);
+    /**
+     * Add a score, scores without a name are kept out of the score table
+     */
+    public void addScore(String name, int score)
+    {
+        ScoreEntry entry = new ScoreEntry(name, score, System.currentTimeMillis());
+        final int entryGeneration;
 
-        Collections.sort(res, Collections.reverseOrder());
+        synchronized (this)
+        {
+            ranking.add(entry);
+            unwritten.add(entry);
+            entryGeneration = generation;
+        }
+
+        writer.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // Without the file scores are kept in memory only
+                    if (fileOpen)
+                    {
+                        writeScores(entryGeneration);
+                    }
+                }
+            });
+    }
 
-        if (res.size() > MAX_SCORES)
+    /**
+     * Append unwritten scores oldest first, called on the writer thread
+     *
+     * @param writeGeneration -- generation the write was asked for in, scores made after a clear are written by
+     *            their own tasks, which run after the file is cleared
+     */
+    private void writeScores(int writeGeneration)
+    {
+        while (true)
         {
-            res = new ArrayList<ScoreEntry>(res.subList(0, MAX_SCORES));
+            ScoreEntry entry;
+            synchronized (this)
+            {
+                if ((writeGeneration != generation) || unwritten.isEmpty())
+                {
+                    return;
+                }
+                entry = unwritten.get(0);
+            }
+
+            try
+            {
+                scoreFile.append(entry);
+            }
+            catch (IOException e)
+            {
+                Log.e(ScoreManager.class.getName(), "error writing score file: ", e);
+                return;
+            }
+
+            written(writeGeneration);
         }
+    }
 
-        return res;
+    /**
+     * Get position a named score would take in the score table
+     *
+     * @return -- position or -1 if the score does not make it to the table
+     */
+    public synchronized int getScorePosition(int score)
+    {
+        int res = ranking.getNamedScores().getRank(score);
+
+        return (res < MAX_SCORES) ? res : -1;
     }
 
-    public int getLowestScore()
+    /**
+     * Get the lowest score in the score table
+     */
+    public synchronized int getLowestScore()
     {
-        if (scores.size() == 0)
+        ScoreIndex namedScores = ranking.getNamedScores();
+        int count = Math.min(namedScores.getCount(), MAX_SCORES);
+        if (count == 0)
         {
             return 0;
         }
 
-        return scores.get(scores.size() - 1).getScore();
+        return namedScores.getScore(namedScores.get(count - 1));
     }
 
     public void clearScores()
     {
-        scores = new ArrayList<ScoreEntry>();
+        synchronized (this)
+        {
+            ranking = new Ranking();
+            unwritten.clear();
+            pages.clear();
+            writtenCount = 0;
+            generation++;
+            version++;
+        }
+
+        writer.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        if (fileOpen)
+                        {
+                            scoreFile.clear();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        Log.e(ScoreManager.class.getName(), "error clearing score file: ", e);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Move the oldest unwritten record to the written ones, unless the scores were cleared since it was taken
+     */
+    private synchronized void written(int entryGeneration)
+    {
+        if (entryGeneration == generation)
+        {
+            unwritten.remove(0);
+            writtenCount++;
+        }
+    }
 
-        writeScores(scores);
+    /**
+     * Find a page with records which are not in memory, pages already read for the query count as in memory
+     *
+     * @return -- page number or -1 if all records are in memory
+     */
+    private int findUnreadPage(int[] ids, int count, Map<Integer, ScoreEntry[]> readPages)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (ids[i] >= writtenCount)
+            {
+                continue;
+            }
+
+            int page = ids[i] / PAGE_SIZE;
+            ScoreEntry[] entries = pages.get(page);
+            if (((entries == null) || (entries[ids[i] % PAGE_SIZE] == null)) && !readPages.containsKey(page))
+            {
+                return page;
+            }
+        }
+
+        return -1;
     }
 
-    @SuppressWarnings("unchecked")
-    private List<ScoreEntry> readScores()
+    /**
+     * Read a page from the file and cache it, called without the manager lock
+     *
+     * @param pageVersion -- version the page was asked for in
+     * @return -- records, null if ids changed meaning since, the page is dropped then
+     */
+    private ScoreEntry[] readPage(int page, int pageVersion)
     {
-        ObjectInputStream objectInputStream = null;
-        List<ScoreEntry> res = new ArrayList<ScoreEntry>();
+        ScoreEntry[] entries = new ScoreEntry[PAGE_SIZE];
         try
         {
-            objectInputStream = new ObjectInputStream(new BufferedInputStream(context.openFileInput(SCORE_FILE_NAME)));
-            res = (ArrayList<ScoreEntry>) objectInputStream.readObject();
+            scoreFile.read(page * PAGE_SIZE, entries);
         }
-        catch (Exception e)
+        catch (IOException e)
         {
             Log.e(getClass().getName(), "error reading score file: ", e);
         }
-        finally
+
+        synchronized (this)
         {
-            try
-            {
-                if (objectInputStream != null)
-                {
-                    objectInputStream.close();
-                }
-            }
-            catch (IOException e)
+            if (pageVersion != version)
             {
+                return null;
             }
+
+            pages.put(page, entries);
+        }
+
+        return entries;
+    }
+
+    private List<ScoreEntry> getEntries(int[] ids, int count, Map<Integer, ScoreEntry[]> readPages)
+    {
+        List<ScoreEntry> res = new ArrayList<ScoreEntry>(count);
+        for (int i = 0; i < count; i++)
+        {
+            res.add(getEntry(ids[i], readPages));
         }
 
         return res;
     }
 
-    private void writeScores(List<ScoreEntry> scores)
+    /**
+     * Get a record from memory, one which could not be read is given without the name
+     *
+     * @param readPages -- pages read for the query, a long query may have them dropped from the cache already
+     */
+    private ScoreEntry getEntry(int id, Map<Integer, ScoreEntry[]> readPages)
     {
-        ObjectOutputStream objectOutputStream = null;
-        try
+        if (id >= writtenCount)
         {
-            objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(context.openFileOutput(SCORE_FILE_NAME, Context.MODE_PRIVATE)));
-            objectOutputStream.writeObject(scores);
+            return unwritten.get(id - writtenCount);
         }
-        catch (Exception e)
+
+        ScoreEntry[] entries = readPages.get(id / PAGE_SIZE);
+        if (entries == null)
         {
-            Log.e(getClass().getName(), "error writing score file: ", e);
+            entries = pages.get(id / PAGE_SIZE);
         }
-        finally
+        ScoreEntry res = (entries != null) ? entries[id % PAGE_SIZE] : null;
+        if (res == null)
         {
-            try
+            ScoreIndex scores = ranking.getScores();
+            res = new ScoreEntry("", scores.getScore(id), scores.getTimestamp(id));
+        }
+
+        return res;
+    }
+
+    /**
+     * Open the score file and index all scores in it, called on the writer thread
+     *
+     * Scores made meanwhile are kept and indexed after the file ones, unless the scores were cleared, then the file
+     * is cleared by the task which follows.
+     */
+    private void readScores()
+    {
+        int readGeneration;
+        synchronized (this)
+        {
+            readGeneration = generation;
+        }
+
+        Ranking fileRanking = new Ranking();
+        int count = 0;
+        try
+        {
+            scoreFile.open();
+            fileOpen = true;
+
+            ScoreEntry[] entries = new ScoreEntry[LOAD_PAGE_SIZE];
+            count = scoreFile.getCount();
+            for (int first = 0; first < count; first += LOAD_PAGE_SIZE)
             {
-                if (objectOutputStream != null)
+                int n = scoreFile.read(first, entries);
+                for (int i = 0; i < n; i++)
                 {
-                    objectOutputStream.close();
+                    fileRanking.add(entries[i]);
                 }
             }
-            catch (IOException e)
+        }
+        catch (Exception e)
+        {
+            Log.e(getClass().getName(), "error reading score file: ", e);
+
+            scoreFile.close();
+            fileOpen = false;
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (readGeneration != generation)
+            {
+                return;
+            }
+
+            for (ScoreEntry entry : unwritten)
             {
+                fileRanking.add(entry);
             }
+            ranking = fileRanking;
+            writtenCount = count;
+            pages.clear();
+            version++;
+        }
+    }
+
+    /**
+     * Index of all scores and of the named ones, named ids are mapped to record ids
+     */
+    private static class Ranking
+    {
+        private ScoreIndex scores = new ScoreIndex();
+        private ScoreIndex namedScores = new ScoreIndex();
+        private int[] namedIds = new int[PAGE_SIZE];
+
+        public void add(ScoreEntry entry)
+        {
+            int id = scores.add(entry.getScore(), entry.getTimestamp());
+            if (entry.getName().length() == 0)
+            {
+                return;
+            }
+
+            int namedId = namedScores.add(entry.getScore(), entry.getTimestamp());
+            if (namedId == namedIds.length)
+            {
+                int[] newNamedIds = new int[namedIds.length * 2];
+                System.arraycopy(namedIds, 0, newNamedIds, 0, namedIds.length);
+                namedIds = newNamedIds;
+            }
+            namedIds[namedId] = id;
+        }
+
+        public ScoreIndex getScores()
+        {
+            return scores;
+        }
+
+        public ScoreIndex getNamedScores()
+        {
+            return namedScores;
+        }
+
+        public int getNamedCount()
+        {
+            return namedScores.getCount();
+        }
+
+        /**
+         * Get record id of the named score at a position
+         */
+        public int getNamedId(int position)
+        {
+            return namedIds[namedScores.get(position)];
         }
     }
 
@@ -6,7 +6,9 @@ package com.solovyev.android.games.tetris;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.util.AttributeSet;
@@ -21,13 +23,21 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 
+/**
+ * List of all scores
+ *
+ * Rows are recycled and filled from pages of scores asked from {@link ScoreManager} as the list scrolls, so the
+ * list costs the same for any number of scores.
+ */
 public class ScoreView extends ListView
 {
     private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yy/MM/dd");
+    private static final int PAGE_SIZE = 32;
+    private static final int CACHE_PAGES = 4;
 
     private int highlightedPosition = -1;
-    private List<ScoreManager.ScoreEntry> scores;
     private ScoreAdapter scoreAdapter;
+    private Animation highlightAnimation;
 
     public ScoreView(Context context, AttributeSet attrs)
     {
@@ -35,8 +45,6 @@ public class ScoreView extends ListView
 
         setFocusable(false);
 
-        initScores();
-
         addHeaderView(LayoutInflater.from(getContext()).inflate(R.layout.score_header, this, false));
 
         scoreAdapter = new ScoreAdapter();
@@ -46,76 +54,200 @@ public class ScoreView extends ListView
         Log.d(this.getClass().getName(), "created: " + this);
     }
 
+    /**
+     * Reread scores, rows are rebound only if the scores changed
+     */
     public void update()
     {
-        initScores();
-        changeNotify();
+        if (scoreAdapter.update())
+        {
+            scoreAdapter.notifyDataSetChanged();
+        }
     }
 
-    private void changeNotify()
+    public void setHighlightedPosition(int highlightedPosition)
     {
-        scoreAdapter.notifyDataSetChanged();
+        int previousPosition = this.highlightedPosition;
+        this.highlightedPosition = highlightedPosition;
+
+        if (highlightedPosition != -1)
+        {
+            // Header row takes list position 0
+            setSelection(highlightedPosition + getHeaderViewsCount());
+        }
+
+        updateRow(previousPosition);
+        updateRow(highlightedPosition);
     }
 
-    private void initScores()
+    /**
+     * Rebind a row if it is on screen
+     *
+     * @param position -- score position
+     */
+    private void updateRow(int position)
     {
-        scores = ScoreManager.getInstance(getContext()).getScores();
+        if (position == -1)
+        {
+            return;
+        }
+
+        int index = (position + getHeaderViewsCount()) - getFirstVisiblePosition();
+        if ((index >= 0) && (index < getChildCount()))
+        {
+            View view = getChildAt(index);
+            if (view.getTag() instanceof ViewHolder)
+            {
+                scoreAdapter.bindView(position, view);
+            }
+        }
     }
 
-    public void setHighlightedPosition(int highlightedPosition)
+    private static class ViewHolder
     {
-        this.highlightedPosition = highlightedPosition;
-        setSelection(highlightedPosition);
-        changeNotify();
+        private TextView position;
+        private TextView name;
+        private TextView score;
+        private TextView timestamp;
     }
 
     public class ScoreAdapter extends BaseAdapter
     {
         private ScoreManager scoreManager = ScoreManager.getInstance(getContext());
+        private LayoutInflater layoutInflater = LayoutInflater.from(getContext());
+        private int count = scoreManager.getCount();
+        private ScoreManager.ScoreEntry firstEntry = getFirstEntry();
+
+        private Map<Integer, List<ScoreManager.ScoreEntry>> pages = new LinkedHashMap<Integer, List<ScoreManager.ScoreEntry>>(CACHE_PAGES + 1, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<ScoreManager.ScoreEntry>> eldest)
+                {
+                    return size() > CACHE_PAGES;
+                }
+            };
+
+        /**
+         * Drop cached pages if scores changed
+         *
+         * Scores are only added or all cleared, so a change always shows in the count or the best score
+         *
+         * @return -- true if scores changed
+         */
+        public boolean update()
+        {
+            int newCount = scoreManager.getCount();
+            ScoreManager.ScoreEntry newFirstEntry = getFirstEntry();
+            if ((newCount == count) && isSameEntry(newFirstEntry, firstEntry))
+            {
+                return false;
+            }
+
+            count = newCount;
+            firstEntry = newFirstEntry;
+            pages.clear();
+
+            return true;
+        }
+
+        private ScoreManager.ScoreEntry getFirstEntry()
+        {
+            return (scoreManager.getCount() != 0) ? scoreManager.getScore(0) : null;
+        }
+
+        /**
+         * Compare entries by value, the manager gives a new object for the same score once it is written or reread
+         */
+        private boolean isSameEntry(ScoreManager.ScoreEntry a, ScoreManager.ScoreEntry b)
+        {
+            if ((a == null) || (b == null))
+            {
+                return a == b;
+            }
+
+            return a.getScore().equals(b.getScore()) && a.getTimestamp().equals(b.getTimestamp());
+        }
 
         @Override
         public int getCount()
         {
-            return scoreManager.getScores().size();
+            return count;
         }
 
         @Override
         public Object getItem(int position)
         {
-            return null;
+            return getEntry(position);
         }
 
         @Override
         public long getItemId(int position)
         {
-            return 0;
+            return position;
+        }
+
+        private ScoreManager.ScoreEntry getEntry(int position)
+        {
+            int page = position / PAGE_SIZE;
+            List<ScoreManager.ScoreEntry> entries = pages.get(page);
+            if (entries == null)
+            {
+                entries = scoreManager.getScores(page * PAGE_SIZE, PAGE_SIZE);
+                pages.put(page, entries);
+            }
+
+            return entries.get(position % PAGE_SIZE);
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent)
         {
-            View view = LayoutInflater.from(getContext()).inflate(R.layout.score_row, parent, false);
+            View view = convertView;
+            if (view == null)
+            {
+                view = layoutInflater.inflate(R.layout.score_row, parent, false);
+
+                ViewHolder viewHolder = new ViewHolder();
+                viewHolder.position = (TextView) view.findViewById(R.id.score_row_position);
+                viewHolder.name = (TextView) view.findViewById(R.id.score_row_name);
+                viewHolder.score = (TextView) view.findViewById(R.id.score_row_score);
+                viewHolder.timestamp = (TextView) view.findViewById(R.id.score_row_timestamp);
+                view.setTag(viewHolder);
+            }
 
-            TextView textViewPosition = (TextView) view.findViewById(R.id.score_row_position);
-            textViewPosition.setText("" + (position + 1) + ".");
+            bindView(position, view);
 
-            TextView textViewName = (TextView) view.findViewById(R.id.score_row_name);
-            textViewName.setText(scores.get(position).getName());
+            return view;
+        }
 
-            TextView textViewScore = (TextView) view.findViewById(R.id.score_row_score);
-            textViewScore.setText("" + scores.get(position).getScore());
+        private void bindView(int position, View view)
+        {
+            ViewHolder viewHolder = (ViewHolder) view.getTag();
+            ScoreManager.ScoreEntry entry = getEntry(position);
 
-            TextView textViewTimestamp = (TextView) view.findViewById(R.id.score_row_timestamp);
-            textViewTimestamp.setText(DATE_FORMAT.format(new Date(scores.get(position).getTimestamp())));
+            viewHolder.position.setText((position + 1) + ".");
+            viewHolder.name.setText(entry.getName());
+            viewHolder.score.setText(String.valueOf(entry.getScore()));
+            viewHolder.timestamp.setText(DATE_FORMAT.format(new Date(entry.getTimestamp())));
 
+            // Recycled rows may carry the animation of another position
             if ((highlightedPosition != -1) && (position == highlightedPosition))
             {
-                Animation animation = AnimationUtils.loadAnimation(getContext(), R.anim.score_animation);
-                view.startAnimation(animation);
+                if (view.getAnimation() == null)
+                {
+                    if (highlightAnimation == null)
+                    {
+                        highlightAnimation = AnimationUtils.loadAnimation(getContext(), R.anim.score_animation);
+                    }
+                    view.startAnimation(highlightAnimation);
+                }
+            }
+            else
+            {
+                view.clearAnimation();
             }
-
-            return view;
         }
-
     }
 }
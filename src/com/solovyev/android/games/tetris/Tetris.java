@@ -3,6 +3,14 @@
  */
 package com.solovyev.android.games.tetris;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.AlertDialog.Builder;
@@ -10,16 +18,27 @@ import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Environment;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.View;
 import android.view.ViewGroup;
 import android.widget.EditText;
+import android.widget.Toast;
 
 import com.solovyev.android.games.tetris.R;
+import com.solovyev.android.games.tetris.engine.AbstractBitboardTetrisEngine;
+import com.solovyev.android.games.tetris.engine.AutoPlayer;
+import com.solovyev.android.games.tetris.engine.BitboardTetrisEngineImpl;
+import com.solovyev.android.games.tetris.engine.LatencyTracker;
+import com.solovyev.android.games.tetris.engine.PlacementSearch;
+import com.solovyev.android.games.tetris.engine.Replay;
+import com.solovyev.android.games.tetris.engine.ReplayPlayer;
+import com.solovyev.android.games.tetris.engine.ReplayWriter;
+import com.solovyev.android.games.tetris.engine.TetrisChangeEvent;
 import com.solovyev.games.tetris.TetrisEngine;
-import com.solovyev.games.tetris.TetrisEngineImpl;
 import com.solovyev.games.tetris.TetrisEvent;
 import com.solovyev.games.tetris.TetrisListener;
 
@@ -28,33 +47,54 @@ public class Tetris extends Activity implements TetrisListener
 {
     private static final String IS_PREVIEW_SHOWN_KEY = "isPreviewShown";
     private static final String IS_FIRST_RUN_KEY = "isFirstRun";
+    private static final String IS_RENDER_THREAD_USED_KEY = "isRenderThreadUsed";
     private static final int GAME_OVER_DIALOG_ID = 0;
     private static final int SCORE_DIALOG_ID = 1;
     private static final int NAME_ENTRY_DIALOG_ID = 2;
     private static final int HELP_DIALOG_ID = 3;
+    private static final int LATENCY_DIALOG_ID = 4;
+    private static final int METRICS_DIALOG_ID = 5;
+    private static final String REPLAY_DIRECTORY_NAME = "replays";
+    private static final String FRAME_STATS_DIRECTORY_NAME = "tetris";
     public static final String PREFERENCES_FILE_NAME = "tetrisPrefrences";
-    private TetrisView tetrisView;
+    private TetrisDisplay tetrisView;
     private TetrisEngine tetrisEngine;
+    private ReplayWriter replayWriter;
+    private LatencyTracker latencyTracker;
+    private FrameStats frameStats;
+    private ReplayPlayer replayPlayer;
+    private AutoPlayer autoPlayer;
+    private ExecutorService searchExecutor;
     private TetrisEngine.GameState previousGameState;
     private Integer highlightedScorePosition = -1;
     private boolean isFirstRun;
+    private boolean isRenderThreadUsed;
     private boolean destroyed = false;
+    private PendingUpdate gameStateUpdate = new PendingUpdate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                updateOnUiThreadHandler();
+            }
+        });
 
     @Override
     public void onCreate(Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
 
-        setContentView(R.layout.tetris);
-
-        tetrisEngine = new TetrisEngineImpl(10, 20);
-
-        tetrisView = (TetrisView) findViewById(R.id.tetris);
-
-        tetrisView.setTetrisEngine(tetrisEngine);
+        BitboardTetrisEngineImpl engine = new BitboardTetrisEngineImpl(10, 20, BitboardTetrisEngineImpl.SchedulerMode.DEADLINE);
+        replayWriter = new ReplayWriter(new File(getFilesDir(), REPLAY_DIRECTORY_NAME));
+        engine.setRecorder(replayWriter);
+        latencyTracker = engine.getLatencyTracker();
+        tetrisEngine = engine;
 
         previousGameState = tetrisEngine.getGameState();
 
+        // Scores are indexed on the writer thread, start it now so they are ready when the game is over
+        ScoreManager.getInstance(this);
+
         readPreferences();
 
         tetrisEngine.addTetrisListener(this);
@@ -92,7 +132,10 @@ public class Tetris extends Activity implements TetrisListener
     @Override
     public void onRestart()
     {
-        tetrisEngine.resume();
+        if (replayPlayer == null)
+        {
+            tetrisEngine.resume();
+        }
 
         super.onRestart();
     }
@@ -108,7 +151,10 @@ public class Tetris extends Activity implements TetrisListener
     @Override
     public void onResume()
     {
-        tetrisEngine.resume();
+        if (replayPlayer == null)
+        {
+            tetrisEngine.resume();
+        }
 
         super.onResume();
     }
@@ -116,16 +162,42 @@ public class Tetris extends Activity implements TetrisListener
     private void readPreferences()
     {
         SharedPreferences preferences = getSharedPreferences(PREFERENCES_FILE_NAME, 0);
-        tetrisView.setPreviewShown(preferences.getBoolean(IS_PREVIEW_SHOWN_KEY, true));
+        isRenderThreadUsed = preferences.getBoolean(IS_RENDER_THREAD_USED_KEY, false);
+        initTetrisView(preferences.getBoolean(IS_PREVIEW_SHOWN_KEY, true), true);
         isFirstRun = preferences.getBoolean(IS_FIRST_RUN_KEY, true);
     }
 
+    /**
+     * Show either plain view or surface view with render thread, both draw the same way
+     */
+    private void initTetrisView(boolean isPreviewShown, boolean isGridShown)
+    {
+        if (tetrisView != null)
+        {
+            tetrisView.destroy();
+        }
+
+        setContentView(isRenderThreadUsed ? R.layout.tetris_surface : R.layout.tetris);
+
+        tetrisView = (TetrisDisplay) findViewById(R.id.tetris);
+
+        tetrisView.setTetrisEngine(tetrisEngine);
+        tetrisView.setLatencyTracker(latencyTracker);
+        tetrisView.setFrameStats(frameStats);
+        tetrisView.setReplayPlayer(replayPlayer);
+        tetrisView.setPreviewShown(isPreviewShown);
+        tetrisView.setGridShown(isGridShown);
+
+        ((View) tetrisView).requestFocus();
+    }
+
     private void savePreferences()
     {
         SharedPreferences preferences = getSharedPreferences(PREFERENCES_FILE_NAME, 0);
         SharedPreferences.Editor editor = preferences.edit();
         editor.putBoolean(IS_PREVIEW_SHOWN_KEY, tetrisView.isPreviewShown());
         editor.putBoolean(IS_FIRST_RUN_KEY, isFirstRun);
+        editor.putBoolean(IS_RENDER_THREAD_USED_KEY, isRenderThreadUsed);
         editor.commit();
     }
 
@@ -141,6 +213,18 @@ public class Tetris extends Activity implements TetrisListener
         MenuItem showGridItem = menu.findItem(R.id.show_grid);
         showGridItem.setChecked(tetrisView.isGridShown());
 
+        MenuItem renderThreadItem = menu.findItem(R.id.render_thread);
+        renderThreadItem.setChecked(isRenderThreadUsed);
+
+        MenuItem autoplayItem = menu.findItem(R.id.autoplay);
+        autoplayItem.setChecked(autoPlayer != null);
+
+        MenuItem engineTimingItem = menu.findItem(R.id.engine_timing);
+        engineTimingItem.setChecked(((AbstractBitboardTetrisEngine) tetrisEngine).isTimingEnabled());
+
+        MenuItem frameStatsItem = menu.findItem(R.id.frame_stats);
+        frameStatsItem.setChecked(frameStats != null);
+
         return true;
     }
 
@@ -149,6 +233,12 @@ public class Tetris extends Activity implements TetrisListener
     {
         MenuItem pauseItem = menu.findItem(R.id.pause);
 
+        MenuItem replayItem = menu.findItem(R.id.replay);
+        replayItem.setTitle((replayPlayer != null) ? R.string.stop_replay_menu_title : R.string.replay_menu_title);
+
+        MenuItem exportFrameStatsItem = menu.findItem(R.id.export_frame_stats);
+        exportFrameStatsItem.setEnabled(frameStats != null);
+
         switch (tetrisEngine.getGameState())
         {
         case PAUSED:
@@ -185,11 +275,35 @@ public class Tetris extends Activity implements TetrisListener
         case R.id.show_grid:
             return showGridItemAction(item);
 
+        case R.id.render_thread:
+            return renderThreadItemAction(item);
+
+        case R.id.autoplay:
+            return autoplayItemAction(item);
+
+        case R.id.latency:
+            return latencyItemHandler();
+
+        case R.id.engine_timing:
+            return engineTimingItemAction(item);
+
+        case R.id.engine_metrics:
+            return engineMetricsItemHandler();
+
+        case R.id.frame_stats:
+            return frameStatsItemAction(item);
+
+        case R.id.export_frame_stats:
+            return exportFrameStatsItemHandler();
+
         case R.id.clear_scores:
             return clearScoresItemHandler();
 
         case R.id.help:
             return helpItemHandler();
+
+        case R.id.replay:
+            return replayItemHandler();
         }
 
         return false;
@@ -202,6 +316,112 @@ public class Tetris extends Activity implements TetrisListener
         return true;
     }
 
+    private boolean latencyItemHandler()
+    {
+        Log.i(getClass().getName(), "input latency:\n" + latencyTracker.getReport());
+        showDialog(LATENCY_DIALOG_ID);
+
+        return true;
+    }
+
+    /**
+     * Timing costs clock reads on every tick and input, so it is only on while asked for
+     */
+    private boolean engineTimingItemAction(MenuItem item)
+    {
+        boolean isTimingEnabled = !item.isChecked();
+        ((AbstractBitboardTetrisEngine) tetrisEngine).setTimingEnabled(isTimingEnabled);
+        item.setChecked(isTimingEnabled);
+
+        return true;
+    }
+
+    private boolean engineMetricsItemHandler()
+    {
+        Log.i(getClass().getName(), "engine metrics:\n" + getEngineMetricsReport());
+        showDialog(METRICS_DIALOG_ID);
+
+        return true;
+    }
+
+    /**
+     * Format engine metrics and dispatch timing, say so if timing is off
+     */
+    private String getEngineMetricsReport()
+    {
+        AbstractBitboardTetrisEngine engine = (AbstractBitboardTetrisEngine) tetrisEngine;
+
+        StringBuilder res = new StringBuilder();
+        res.append(engine.getMetrics().getReport()).append('\n');
+        res.append("dispatch: ").append(engine.getDispatchTiming());
+        if (!engine.isTimingEnabled())
+        {
+            res.append("\n\n").append(getString(R.string.metrics_timing_off));
+        }
+
+        return res.toString();
+    }
+
+    private boolean frameStatsItemAction(MenuItem item)
+    {
+        if (frameStats != null)
+        {
+            frameStats.stop();
+            frameStats = null;
+        }
+        else
+        {
+            frameStats = new FrameStats();
+            frameStats.start();
+        }
+        tetrisView.setFrameStats(frameStats);
+        item.setChecked(frameStats != null);
+
+        return true;
+    }
+
+    /**
+     * Write recorded frames to a CSV file on external storage, or to the application files if there is none
+     */
+    private boolean exportFrameStatsItemHandler()
+    {
+        if (frameStats == null)
+        {
+            return true;
+        }
+
+        File directory = Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()) ? new File(Environment
+                .getExternalStorageDirectory(), FRAME_STATS_DIRECTORY_NAME) : getFilesDir();
+        File file = new File(directory, "frame_stats-" + System.currentTimeMillis() + ".csv");
+
+        try
+        {
+            directory.mkdirs();
+
+            Writer writer = new FileWriter(file);
+            try
+            {
+                writer.write(frameStats.toCsv());
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.e(getClass().getName(), "error writing frame stats: ", e);
+            Toast.makeText(this, R.string.frame_stats_export_failed, Toast.LENGTH_SHORT).show();
+
+            return true;
+        }
+
+        Log.i(getClass().getName(), "frame stats written to " + file);
+        Toast.makeText(this, getString(R.string.frame_stats_exported, file), Toast.LENGTH_LONG).show();
+
+        return true;
+    }
+
     private boolean scoresItemHandler()
     {
         showDialog(SCORE_DIALOG_ID);
@@ -241,6 +461,65 @@ public class Tetris extends Activity implements TetrisListener
         return true;
     }
 
+    private boolean renderThreadItemAction(MenuItem item)
+    {
+        isRenderThreadUsed = !item.isChecked();
+        item.setChecked(isRenderThreadUsed);
+
+        initTetrisView(tetrisView.isPreviewShown(), tetrisView.isGridShown());
+
+        return true;
+    }
+
+    private boolean autoplayItemAction(MenuItem item)
+    {
+        if (autoPlayer != null)
+        {
+            stopAutoplay();
+        }
+        else
+        {
+            startAutoplay();
+        }
+        item.setChecked(autoPlayer != null);
+
+        return true;
+    }
+
+    /**
+     * Let a bot play the game, placements are searched on all cores
+     */
+    private void startAutoplay()
+    {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (searchExecutor == null)
+        {
+            searchExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread res = new Thread(runnable, "PlacementSearch");
+                        res.setDaemon(true);
+
+                        return res;
+                    }
+                });
+        }
+
+        autoPlayer = new AutoPlayer(tetrisEngine, new PlacementSearch(tetrisEngine.getWidth(), tetrisEngine.getHeight(), searchExecutor, threadCount));
+        autoPlayer.start();
+    }
+
+    private void stopAutoplay()
+    {
+        if (autoPlayer != null)
+        {
+            autoPlayer.stop();
+            autoPlayer = null;
+        }
+    }
+
     private boolean quitItemHandler()
     {
         finish();
@@ -250,6 +529,8 @@ public class Tetris extends Activity implements TetrisListener
 
     private boolean newGameItemHandler()
     {
+        stopReplay();
+
         tetrisEngine.stop();
         tetrisEngine.start();
 
@@ -258,6 +539,8 @@ public class Tetris extends Activity implements TetrisListener
 
     private boolean pauseItemHandler(MenuItem item)
     {
+        stopReplay();
+
         switch (tetrisEngine.getGameState())
         {
         case PAUSED:
@@ -278,12 +561,80 @@ public class Tetris extends Activity implements TetrisListener
         return true;
     }
 
+    private boolean replayItemHandler()
+    {
+        if (replayPlayer != null)
+        {
+            stopReplay();
+        }
+        else
+        {
+            startReplay();
+        }
+
+        return true;
+    }
+
+    /**
+     * Pause the game and show the replay of it, or of the last game if none is being played
+     */
+    private void startReplay()
+    {
+        tetrisEngine.pause();
+
+        Replay replay;
+        try
+        {
+            replay = replayWriter.getReplay();
+        }
+        catch (IOException e)
+        {
+            Log.e(getClass().getName(), "error reading replay: ", e);
+            return;
+        }
+
+        if (replay == null)
+        {
+            return;
+        }
+
+        replayPlayer = new ReplayPlayer(replay);
+        tetrisView.setReplayPlayer(replayPlayer);
+        replayPlayer.start();
+    }
+
+    /**
+     * Go back to the game, it stays paused
+     */
+    private void stopReplay()
+    {
+        if (replayPlayer != null)
+        {
+            replayPlayer.stop();
+            replayPlayer = null;
+            tetrisView.setReplayPlayer(null);
+        }
+    }
+
     public synchronized void destroy()
     {
         if (!destroyed)
         {
             destroyed = true;
 
+            stopReplay();
+            stopAutoplay();
+
+            if (frameStats != null)
+            {
+                frameStats.stop();
+            }
+
+            if (searchExecutor != null)
+            {
+                searchExecutor.shutdown();
+            }
+
             if (tetrisView != null)
             {
                 tetrisView.destroy();
@@ -292,32 +643,31 @@ public class Tetris extends Activity implements TetrisListener
             if (tetrisEngine != null)
             {
                 tetrisEngine.removeTetrisListener(this);
-                ((TetrisEngineImpl) tetrisEngine).destroy();
+                ((AbstractBitboardTetrisEngine) tetrisEngine).destroy();
             }
+            gameStateUpdate.cancel();
 
             Log.d(this.getClass().getName(), "deleted: " + this);
         }
     }
 
     @Override
-    public void stateChanged(final TetrisEvent e)
+    public void stateChanged(TetrisEvent e)
     {
-        runOnUiThread(new Runnable()
-            {
-                public void run()
-                {
-                    updateOnUiThreadHandler(e);
-                }
-            });
+        // Only game state matters here, typed events let piece moves and ticks be skipped right away
+        if ((e instanceof TetrisChangeEvent) && (((TetrisChangeEvent) e).getKind() != TetrisChangeEvent.Kind.GAME_STATE_CHANGED))
+        {
+            return;
+        }
+
+        // The handler reads the state itself, so changes coming before it runs need no update of their own
+        gameStateUpdate.request();
     }
 
     /**
      * Handle tetrisEngine update on UI thread
-     *
-     * @param observable
-     * @param data
      */
-    private void updateOnUiThreadHandler(TetrisEvent e)
+    private void updateOnUiThreadHandler()
     {
         TetrisEngine.GameState gameState = tetrisEngine.getGameState();
 
@@ -348,6 +698,12 @@ public class Tetris extends Activity implements TetrisListener
         case HELP_DIALOG_ID:
             dialog = makeHelpDialog();
             break;
+        case LATENCY_DIALOG_ID:
+            dialog = makeLatencyDialog();
+            break;
+        case METRICS_DIALOG_ID:
+            dialog = makeMetricsDialog();
+            break;
         default:
             dialog = null;
         }
@@ -368,6 +724,12 @@ public class Tetris extends Activity implements TetrisListener
             scoreView.setHighlightedPosition(highlightedScorePosition);
             highlightedScorePosition = -1;
             break;
+        case LATENCY_DIALOG_ID:
+            ((AlertDialog) dialog).setMessage(latencyTracker.getReport());
+            break;
+        case METRICS_DIALOG_ID:
+            ((AlertDialog) dialog).setMessage(getEngineMetricsReport());
+            break;
         default:
             break;
         }
@@ -403,7 +765,14 @@ public class Tetris extends Activity implements TetrisListener
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         builder.setView(getLayoutInflater().inflate(R.layout.name_entry, (ViewGroup) findViewById(R.id.name_entry)));
         builder.setTitle(R.string.name_entry_dialog_title);
-        builder.setCancelable(true).setNegativeButton(R.string.cancel_button_label, null).setPositiveButton(R.string.ok_button_label, new DialogInterface.OnClickListener()
+        builder.setCancelable(true).setNegativeButton(R.string.cancel_button_label, new DialogInterface.OnClickListener()
+            {
+                @Override
+                public void onClick(DialogInterface dialog, int which)
+                {
+                    recordUnnamedScore();
+                }
+            }).setPositiveButton(R.string.ok_button_label, new DialogInterface.OnClickListener()
             {
                 @Override
                 public void onClick(DialogInterface dialog, int which)
@@ -414,6 +783,18 @@ public class Tetris extends Activity implements TetrisListener
                     {
                         recordScore(name);
                     }
+                    else
+                    {
+                        recordUnnamedScore();
+                    }
+                }
+            });
+        builder.setOnCancelListener(new DialogInterface.OnCancelListener()
+            {
+                @Override
+                public void onCancel(DialogInterface dialog)
+                {
+                    recordUnnamedScore();
                 }
             });
 
@@ -441,6 +822,44 @@ public class Tetris extends Activity implements TetrisListener
         return builder.create();
     }
 
+    private Dialog makeLatencyDialog()
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.latency_dialog_title);
+        // Message is set in onPrepareDialog(), it has to be there for the dialog to have a message view
+        builder.setMessage("");
+        builder.setCancelable(true).setPositiveButton(R.string.ok_button_label, null).setNegativeButton(R.string.reset_button_label,
+                new DialogInterface.OnClickListener()
+                {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which)
+                    {
+                        latencyTracker.clear();
+                    }
+                });
+
+        return builder.create();
+    }
+
+    private Dialog makeMetricsDialog()
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.metrics_dialog_title);
+        // Message is set in onPrepareDialog(), same as in the latency dialog
+        builder.setMessage("");
+        builder.setCancelable(true).setPositiveButton(R.string.ok_button_label, null).setNegativeButton(R.string.reset_button_label,
+                new DialogInterface.OnClickListener()
+                {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which)
+                    {
+                        ((AbstractBitboardTetrisEngine) tetrisEngine).clearMetrics();
+                    }
+                });
+
+        return builder.create();
+    }
+
     private void checkScore()
     {
         int position = ScoreManager.getInstance(Tetris.this).getScorePosition(tetrisEngine.getScore());
@@ -451,6 +870,10 @@ public class Tetris extends Activity implements TetrisListener
         {
             showDialog(NAME_ENTRY_DIALOG_ID);
         }
+        else
+        {
+            recordUnnamedScore();
+        }
     }
 
     private void recordScore(String name)
@@ -459,4 +882,12 @@ public class Tetris extends Activity implements TetrisListener
 
         showDialog(SCORE_DIALOG_ID);
     }
+
+    /**
+     * Keep scores which did not make it to the score table or were not named, for rank and time queries
+     */
+    private void recordUnnamedScore()
+    {
+        ScoreManager.getInstance(Tetris.this).addScore("", tetrisEngine.getScore());
+    }
 }
@@ -0,0 +1,361 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import java.util.LinkedList;
+
+import android.graphics.Rect;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.solovyev.android.games.tetris.engine.ReplayPlayer;
+import com.solovyev.android.games.tetris.engine.TetrisInputSink;
+import com.solovyev.android.games.tetris.engine.TetrisRecorder;
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * Translate keys, touches and trackball moves into engine commands
+ *
+ * Shared by both tetris views, touch areas are taken from the view the events come to. While a replay is shown
+ * the same controls drive the replay player: left and right seek, rotations change the speed and drop pauses.
+ * Engines taking posted input get it with the event time and the UI thread does not wait for the engine.
+ */
+public class TetrisController
+{
+    private static final long SEEK_TICKS = 500;
+    private static final int SPEED_FACTOR = 4;
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private View view;
+    private TetrisEngine tetrisEngine;
+    private ReplayPlayer replayPlayer;
+
+    private TouchEventHandler touchEventHandler;
+    private TrackballEventHandler trackballEventHandler;
+
+    public TetrisController(View view)
+    {
+        this.view = view;
+
+        touchEventHandler = new TouchEventHandler();
+        trackballEventHandler = new TrackballEventHandler();
+    }
+
+    public void setTetrisEngine(TetrisEngine tetrisEngine)
+    {
+        this.tetrisEngine = tetrisEngine;
+    }
+
+    /**
+     * Set replay player to control instead of the engine, null to control the engine again
+     */
+    public void setReplayPlayer(ReplayPlayer replayPlayer)
+    {
+        this.replayPlayer = replayPlayer;
+    }
+
+    private void movePieceLeft(long eventTime)
+    {
+        if (replayPlayer != null)
+        {
+            replayPlayer.seek(replayPlayer.getTick() - SEEK_TICKS);
+        }
+        else
+        {
+            sendInput(TetrisRecorder.Action.MOVE_LEFT, eventTime);
+        }
+    }
+
+    private void movePieceRight(long eventTime)
+    {
+        if (replayPlayer != null)
+        {
+            replayPlayer.seek(replayPlayer.getTick() + SEEK_TICKS);
+        }
+        else
+        {
+            sendInput(TetrisRecorder.Action.MOVE_RIGHT, eventTime);
+        }
+    }
+
+    private void rotatePieceClockwise(long eventTime)
+    {
+        if (replayPlayer != null)
+        {
+            replayPlayer.setSpeed(replayPlayer.getSpeed() / SPEED_FACTOR);
+        }
+        else
+        {
+            sendInput(TetrisRecorder.Action.ROTATE_CLOCKWISE, eventTime);
+        }
+    }
+
+    private void rotatePieceCounterclockwise(long eventTime)
+    {
+        if (replayPlayer != null)
+        {
+            // Fast forward speeds go round, so touch control can get back to normal speed
+            int speed = replayPlayer.getSpeed();
+            replayPlayer.setSpeed((speed < ReplayPlayer.MAX_SPEED) ? (speed * SPEED_FACTOR) : 1);
+        }
+        else
+        {
+            sendInput(TetrisRecorder.Action.ROTATE_COUNTERCLOCKWISE, eventTime);
+        }
+    }
+
+    private void dropPiece(long eventTime)
+    {
+        if (replayPlayer != null)
+        {
+            replayPlayer.setPaused(!replayPlayer.isPaused());
+        }
+        else
+        {
+            sendInput(TetrisRecorder.Action.DROP, eventTime);
+        }
+    }
+
+    /**
+     * @param eventTime -- event time, SystemClock.uptimeMillis() clock, which is the System.nanoTime() one in
+     *            milliseconds
+     */
+    private void sendInput(TetrisRecorder.Action action, long eventTime)
+    {
+        if (tetrisEngine instanceof TetrisInputSink)
+        {
+            ((TetrisInputSink) tetrisEngine).postInput(action, eventTime * NANOS_PER_MILLI);
+            return;
+        }
+
+        switch (action)
+        {
+        case MOVE_LEFT:
+            tetrisEngine.movePieceLeft();
+            break;
+        case MOVE_RIGHT:
+            tetrisEngine.movePieceRight();
+            break;
+        case ROTATE_CLOCKWISE:
+            tetrisEngine.rotatePieceClockwise();
+            break;
+        case ROTATE_COUNTERCLOCKWISE:
+            tetrisEngine.rotatePieceCounterclockwise();
+            break;
+        case DROP:
+            tetrisEngine.dropPiece();
+            break;
+        default:
+            break;
+        }
+    }
+
+    public boolean onKeyDown(int keyCode, KeyEvent event)
+    {
+        if (tetrisEngine == null)
+        {
+            return false;
+        }
+
+        switch (keyCode)
+        {
+        case KeyEvent.KEYCODE_K:
+        case KeyEvent.KEYCODE_DPAD_DOWN:
+            rotatePieceClockwise(event.getEventTime());
+            break;
+        case KeyEvent.KEYCODE_S:
+        case KeyEvent.KEYCODE_DPAD_UP:
+            rotatePieceCounterclockwise(event.getEventTime());
+            break;
+        case KeyEvent.KEYCODE_A:
+        case KeyEvent.KEYCODE_DPAD_LEFT:
+            movePieceLeft(event.getEventTime());
+            break;
+        case KeyEvent.KEYCODE_L:
+        case KeyEvent.KEYCODE_DPAD_RIGHT:
+            movePieceRight(event.getEventTime());
+            break;
+        case KeyEvent.KEYCODE_SPACE:
+        case KeyEvent.KEYCODE_DPAD_CENTER:
+        case KeyEvent.KEYCODE_Q:
+        case KeyEvent.KEYCODE_P:
+            dropPiece(event.getEventTime());
+            break;
+        }
+
+        return false;
+    }
+
+    public boolean onTrackballEvent(MotionEvent motionEvent)
+    {
+        if (tetrisEngine == null)
+        {
+            return false;
+        }
+
+        trackballEventHandler.onTrackballEvent(motionEvent);
+
+        return true;
+    }
+
+    public boolean onTouchEvent(MotionEvent motionEvent)
+    {
+        if (tetrisEngine == null)
+        {
+            return false;
+        }
+
+        touchEventHandler.onTouchEvent(motionEvent);
+
+        return true;
+    }
+
+    private class TouchEventHandler
+    {
+        private static final long AUTOREPEAT_DELAY = 400;
+        private static final long AUTOREPEAT_RATE = 50;
+        private boolean keyPressed;
+        private long keyPressedTimestamp;
+        private long keySentTimestamp;
+
+        public void onTouchEvent(MotionEvent motionEvent)
+        {
+            switch (motionEvent.getAction())
+            {
+            case MotionEvent.ACTION_DOWN:
+                keyPressed = true;
+                keyPressedTimestamp = System.currentTimeMillis();
+                keyHandler(motionEvent);
+                break;
+
+            case MotionEvent.ACTION_UP:
+                keyPressed = false;
+                break;
+
+            case MotionEvent.ACTION_MOVE:
+                if (keyPressed && ((System.currentTimeMillis() - keyPressedTimestamp) > AUTOREPEAT_DELAY) && ((System.currentTimeMillis() - keySentTimestamp) > AUTOREPEAT_RATE))
+                {
+                    keySentTimestamp = System.currentTimeMillis();
+                    keyHandler(motionEvent);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        private void keyHandler(MotionEvent motionEvent)
+        {
+            Rect top = new Rect(0, 0, view.getWidth(), view.getHeight() / 2);
+            Rect left = new Rect(0, view.getHeight() / 2, view.getWidth() / 3, view.getHeight());
+            Rect middle = new Rect(view.getWidth() / 3, view.getHeight() / 2, 2 * view.getWidth() / 3, view.getHeight());
+            Rect right = new Rect(2 * view.getWidth() / 3, view.getHeight() / 2, view.getWidth(), view.getHeight());
+
+            if (top.contains((int) motionEvent.getX(), (int) motionEvent.getY()))
+            {
+                dropPiece(motionEvent.getEventTime());
+            }
+
+            if (left.contains((int) motionEvent.getX(), (int) motionEvent.getY()))
+            {
+                movePieceLeft(motionEvent.getEventTime());
+            }
+
+            if (middle.contains((int) motionEvent.getX(), (int) motionEvent.getY()))
+            {
+                rotatePieceCounterclockwise(motionEvent.getEventTime());
+            }
+
+            if (right.contains((int) motionEvent.getX(), (int) motionEvent.getY()))
+            {
+                movePieceRight(motionEvent.getEventTime());
+            }
+        }
+    }
+
+    private class TrackballEventHandler
+    {
+        private static final float SENSITIVITY_X = 0.5f;
+        private static final float SENSITIVITY_Y = 1.0f;
+
+        private static final long QUEUE_OBSOLESCENSE_TIME = 300;
+        private LinkedList<MotionEvent> eventQueue = new LinkedList<MotionEvent>();
+
+        public void onTrackballEvent(MotionEvent motionEvent)
+        {
+            // Log.d(getClass().getName(), "onTrackballEvent(), event: " + motionEvent);
+
+            // On click flush event queue and drop piece
+            if (motionEvent.getAction() == MotionEvent.ACTION_UP)
+            {
+                dropPiece(motionEvent.getEventTime());
+                eventQueue.clear();
+
+                return;
+            }
+
+            // Only motion events are processed down
+            if (motionEvent.getAction() != MotionEvent.ACTION_MOVE)
+            {
+                return;
+            }
+
+            // If queue is too old, it was an incomplete action, flush and do nothing
+            if ((eventQueue.size() > 0) && ((motionEvent.getEventTime() - eventQueue.getLast().getEventTime()) > QUEUE_OBSOLESCENSE_TIME))
+            {
+                eventQueue.clear();
+
+                return;
+            }
+
+            // Put event into queue
+            eventQueue.add(MotionEvent.obtain(motionEvent));
+
+            // Integrate X and Y over the queue
+            float x = 0;
+            float y = 0;
+            for (MotionEvent e : eventQueue)
+            {
+                x += e.getX();
+                y += e.getY();
+            }
+
+            // Was that a more of a horizontal or vertical move?
+            if ((Math.abs(x) < SENSITIVITY_X) && (Math.abs(y) < SENSITIVITY_Y))
+            {
+                return;
+            }
+
+            // Move or rotate the piece
+            // Log.d(getClass().getName(), "x: " + x + " y: " + y);
+            if (Math.abs(x) > Math.abs(y))
+            {
+                if (x > 0)
+                {
+                    movePieceRight(motionEvent.getEventTime());
+                }
+                if (x < 0)
+                {
+                    movePieceLeft(motionEvent.getEventTime());
+                }
+            }
+            else
+            {
+                if (motionEvent.getY() > 0)
+                {
+                    rotatePieceClockwise(motionEvent.getEventTime());
+                }
+                if (motionEvent.getY() < 0)
+                {
+                    rotatePieceCounterclockwise(motionEvent.getEventTime());
+                }
+            }
+
+            // Flush the queue
+            eventQueue.clear();
+        }
+    }
+}
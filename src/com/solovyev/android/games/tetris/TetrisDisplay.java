@@ -0,0 +1,43 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import com.solovyev.android.games.tetris.engine.LatencyTracker;
+import com.solovyev.android.games.tetris.engine.ReplayPlayer;
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * View showing the game, implemented by the plain view redrawn on the UI thread and by the surface view with
+ * its own render thread
+ */
+public interface TetrisDisplay
+{
+    void setTetrisEngine(TetrisEngine tetrisEngine);
+
+    /**
+     * Set tracker to report drawn frames to, null not to report them
+     */
+    void setLatencyTracker(LatencyTracker latencyTracker);
+
+    /**
+     * Record frame timings and show their summary, null to stop
+     */
+    void setFrameStats(FrameStats frameStats);
+
+    /**
+     * Show a replay and let input control it, null to go back to the engine set before
+     */
+    void setReplayPlayer(ReplayPlayer replayPlayer);
+
+    void setPreviewShown(boolean isPreviewShown);
+
+    void setGridShown(boolean isGridShown);
+
+    boolean isPreviewShown();
+
+    boolean isGridShown();
+
+    void destroy();
+}
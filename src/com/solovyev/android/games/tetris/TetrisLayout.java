@@ -0,0 +1,159 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import java.util.List;
+
+import com.solovyev.games.tetris.Cell;
+
+
+/**
+ * Screen geometry of the glass, the preview and the stats
+ *
+ * Plain integer math without Android classes, bounds are kept as left, top, right, bottom arrays, so the layout
+ * can be measured and checked on a plain JVM.
+ */
+public class TetrisLayout
+{
+    public static final int FIELD_PADDING = 5;
+    public static final int FIELD_BORDER = 2;
+    public static final int PREVIEW_WIDTH = 5;
+    public static final int PREVIEW_HEIGHT = 5;
+
+    private int cellSize;
+    private int[] previewBounds = new int[4];
+    private int[] glassBounds = new int[4];
+    private int[] statsBounds = new int[4];
+
+    /**
+     * Place fields on a screen
+     *
+     * @param width -- screen width
+     * @param height -- screen height
+     * @param columns -- glass width in cells
+     * @param rows -- glass height in cells
+     */
+    public void layout(int width, int height, int columns, int rows)
+    {
+        cellSize = getCellSize(width, height, columns, rows);
+
+        int glassWidth = columns * cellSize;
+        int glassHeight = rows * cellSize;
+        int previewWidth = PREVIEW_WIDTH * cellSize;
+        int previewHeight = PREVIEW_HEIGHT * cellSize;
+
+        previewBounds[0] = (width / 2) - ((glassWidth + previewWidth + (FIELD_PADDING * 3) + (FIELD_BORDER * 4)) / 2) + FIELD_PADDING + FIELD_BORDER;
+        previewBounds[1] = (height / 2) - (glassHeight / 2);
+        previewBounds[2] = previewBounds[0] + previewWidth;
+        previewBounds[3] = previewBounds[1] + previewHeight;
+
+        glassBounds[0] = previewBounds[2] + (FIELD_BORDER * 2) + FIELD_PADDING;
+        glassBounds[1] = previewBounds[1];
+        glassBounds[2] = glassBounds[0] + glassWidth;
+        glassBounds[3] = glassBounds[1] + glassHeight;
+
+        statsBounds[0] = previewBounds[0];
+        statsBounds[1] = previewBounds[3] + (FIELD_BORDER * 2) + FIELD_PADDING;
+        statsBounds[2] = previewBounds[2];
+        statsBounds[3] = glassBounds[3];
+    }
+
+    public int getCellSize()
+    {
+        return cellSize;
+    }
+
+    /**
+     * @return -- left, top, right, bottom, the array should not be modified
+     */
+    public int[] getPreviewBounds()
+    {
+        return previewBounds;
+    }
+
+    /**
+     * @return -- left, top, right, bottom, the array should not be modified
+     */
+    public int[] getGlassBounds()
+    {
+        return glassBounds;
+    }
+
+    /**
+     * @return -- left, top, right, bottom, the array should not be modified
+     */
+    public int[] getStatsBounds()
+    {
+        return statsBounds;
+    }
+
+    /**
+     * Get the largest cell size which lets the glass and the preview fit on a screen
+     */
+    public static int getCellSize(int width, int height, int columns, int rows)
+    {
+        int fieldsWidth = width - (FIELD_PADDING * 3) + (FIELD_BORDER * 4);
+        int fieldsHeight = height - ((FIELD_PADDING + FIELD_BORDER) * 2);
+
+        return Math.min(fieldsHeight / rows, fieldsWidth / (columns + PREVIEW_WIDTH));
+    }
+
+    /**
+     * Get cell bounding rectangle
+     *
+     * @param x -- cell column
+     * @param y -- cell row
+     * @param fieldLeft -- grid field left
+     * @param fieldTop -- grid field top
+     * @param offsetX -- arbitrary horizontal offset
+     * @param offsetY -- arbitrary vertical offset
+     * @param cellSize -- cell size
+     * @param res -- array to put left, top, right, bottom to
+     */
+    public static void getCellBounds(int x, int y, int fieldLeft, int fieldTop, int offsetX, int offsetY, int cellSize, int[] res)
+    {
+        res[0] = fieldLeft + offsetX + (x * cellSize);
+        res[1] = fieldTop + offsetY + (y * cellSize);
+        res[2] = res[0] + cellSize;
+        res[3] = res[1] + cellSize;
+    }
+
+    /**
+     * Get offset for preview cells, we need to center piece in the preview field for aestetics
+     *
+     * @param cells -- preview piece cells
+     * @param cellSize -- cell size
+     * @param res -- array to put x and y offset to
+     */
+    public static void getPreviewCellOffset(List<Cell> cells, int cellSize, int[] res)
+    {
+        int minX = PREVIEW_WIDTH;
+        int maxX = 0;
+        int minY = PREVIEW_HEIGHT;
+        int maxY = 0;
+        for (int i = 0; i < cells.size(); i++)
+        {
+            Cell c = cells.get(i);
+            if (c.getX() > maxX)
+            {
+                maxX = c.getX();
+            }
+            if (c.getX() < minX)
+            {
+                minX = c.getX();
+            }
+            if (c.getY() > maxY)
+            {
+                maxY = c.getY();
+            }
+            if (c.getY() < minY)
+            {
+                minY = c.getY();
+            }
+        }
+
+        res[0] = (PREVIEW_WIDTH * cellSize / 2) - (cellSize * (minX + maxX + 1) / 2);
+        res[1] = (PREVIEW_HEIGHT * cellSize / 2) - (cellSize * (minY + maxY + 1) / 2);
+    }
+}
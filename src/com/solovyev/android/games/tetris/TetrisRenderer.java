@@ -0,0 +1,817 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import java.util.List;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import com.solovyev.android.games.tetris.R;
+import com.solovyev.android.games.tetris.engine.TetrisSnapshot;
+import com.solovyev.android.games.tetris.engine.TetrisSnapshotSource;
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * Draw tetris on a canvas
+ *
+ * There are two "fields", the "glass" and the "preview" (where next piece is shown), placed side by side in
+ * the center of the screen, stats are shown under the preview.
+ *
+ * Renderer is shared by the plain view and the surface view. Engine state is read once per frame in
+ * prepareFrame(), which also finds out what changed since the previous frame: old and new piece footprint,
+ * changed sea rows, preview and stats. Views repaint only the collected dirty rectangle. Frames, interiors and
+ * grid are rendered into a background layer once per size change, settled sea is kept in a backing bitmap where
+ * only changed rows are redrawn, stats panel is a layer of its own redrawn only when a value changes.
+ *
+ * Engines publishing {@link TetrisSnapshot}s are read without locking, sea rows come from the snapshot and are
+ * compared only when the snapshot sea arrays change. Other engines are read under their monitor and their sea
+ * cells are compared row by row.
+ *
+ * With {@link FrameStats} set, their summary is drawn over the top of the glass. The summary is taken only when a
+ * frame is prepared anyway and at most every summary period, so an idle game stays idle.
+ */
+public class TetrisRenderer
+{
+    private static final String SCORE_HEADING = "Score";
+    private static final String LINES_HEADING = "Lines";
+    private static final String SPEED_HEADING = "Speed";
+    private static final String PIECES_HEADING = "Pieces";
+    private static final int STATS_COUNT = 4;
+    private static final int MAX_INT_LENGTH = 11;
+    private static final int FRAME_STATS_LINE_COUNT = 3;
+    private TetrisEngine tetrisEngine;
+    private TetrisSnapshotSource snapshotSource;
+    private Drawable[] colorToDrawable = new Drawable[Cell.Color.values().length];
+    private CellAtlas cellAtlas;
+
+    private int width;
+    private int height;
+    private Rect previewRect;
+    private Rect glassRect;
+    private Rect statsRect;
+    private int cellSize;
+    private TetrisLayout layout = new TetrisLayout();
+
+    // Drawing state, made once and reused by every frame
+    private Paint framePaint = new Paint();
+    private Paint interiorPaint = new Paint();
+    private Paint gridPaint = new Paint();
+    private Paint statsPaint = new Paint();
+    private Rect previewFrameRect = new Rect();
+    private Rect glassFrameRect = new Rect();
+    private Rect statsFrameRect = new Rect();
+    private Rect cellRect = new Rect();
+    private Point previewCellOffset = new Point();
+    private int[] bounds = new int[4];
+    private float statsTextOriginX;
+    private float statsLineHeight;
+    private float statsFontHeight;
+
+    // Engine state of the current frame
+    private List<Cell> frameSea;
+    private Piece framePiece;
+    private Piece frameNextPiece;
+    private int[] frameStatsValues = new int[STATS_COUNT];
+    private int[] frameSeaRows;
+    private byte[] frameSeaColors;
+
+    // Snapshot version of the current frame and of the last frame drawn, -1 when not read from a snapshot
+    private long frameVersion = -1;
+    private long drawnVersion = -1;
+
+    // Settled sea as row masks and colors (ordinal + 1), and its backing bitmap
+    private List<Cell> sea;
+    private int[] snapshotSeaRows;
+    private int[] seaRows;
+    private byte[] seaColors;
+    private int[] newSeaRows;
+    private byte[] newSeaColors;
+    private boolean[] dirtySeaRows;
+    private Bitmap seaBitmap;
+    private Canvas seaCanvas;
+    private Rect seaRowRect = new Rect();
+    private Rect layerRowRect = new Rect();
+
+    // Frames, interiors and grid, covers all three fields
+    private Bitmap backgroundBitmap;
+    private Rect backgroundRect = new Rect();
+
+    // Area changed since it was last taken by the view
+    private Rect dirtyRect = new Rect();
+    private Rect changeRect = new Rect();
+
+    // Pieces are immutable, their cells are fetched only when the piece changes
+    private Piece piece;
+    private List<Cell> pieceCells;
+    private Piece nextPiece;
+    private List<Cell> nextPieceCells;
+
+    // Stats panel layer, values are formatted into reused buffers and rendered only when they change
+    private String[] statsHeadings = new String[] { SCORE_HEADING, LINES_HEADING, SPEED_HEADING, PIECES_HEADING };
+    private int[] statsValues = new int[STATS_COUNT];
+    private char[][] statsChars = new char[STATS_COUNT][MAX_INT_LENGTH];
+    private int[] statsCharsStart = new int[STATS_COUNT];
+    private boolean isStatsReset = true;
+    private boolean isStatsLayerDirty = true;
+    private Bitmap statsBitmap;
+    private Canvas statsCanvas;
+
+    // Frame stats overlay, summary lines are taken when due and drawn over everything else
+    private FrameStats frameStats;
+    private String[] frameStatsLines;
+    private Paint frameStatsPaint = new Paint();
+    private Paint frameStatsBackgroundPaint = new Paint();
+    private Rect frameStatsRect = new Rect();
+    private float frameStatsLineHeight;
+    private float frameStatsTextOriginY;
+
+    private boolean isPreviewShown = true;
+    private boolean isGridShown = true;
+
+    public TetrisRenderer(Resources resources)
+    {
+        initColorToDrawable(resources);
+
+        initPaints(resources);
+    }
+
+    public synchronized void setTetrisEngine(TetrisEngine tetrisEngine)
+    {
+        this.tetrisEngine = tetrisEngine;
+        snapshotSource = (tetrisEngine instanceof TetrisSnapshotSource) ? (TetrisSnapshotSource) tetrisEngine : null;
+
+        seaRows = new int[tetrisEngine.getHeight()];
+        seaColors = new byte[tetrisEngine.getWidth() * tetrisEngine.getHeight()];
+        newSeaRows = new int[tetrisEngine.getHeight()];
+        newSeaColors = new byte[tetrisEngine.getWidth() * tetrisEngine.getHeight()];
+        dirtySeaRows = new boolean[tetrisEngine.getHeight()];
+        sea = null;
+        snapshotSeaRows = null;
+        piece = null;
+        nextPiece = null;
+
+        initSizes();
+    }
+
+    public synchronized void setPreviewShown(boolean isPreviewShown)
+    {
+        this.isPreviewShown = isPreviewShown;
+
+        if (previewRect != null)
+        {
+            dirtyRect.union(previewRect);
+        }
+    }
+
+    public synchronized void setGridShown(boolean isGridShown)
+    {
+        this.isGridShown = isGridShown;
+
+        if (backgroundBitmap != null)
+        {
+            renderBackground();
+        }
+
+        // Grid is a part of every sea row
+        invalidateSea();
+    }
+
+    /**
+     * Show frame stats summary, null to hide it
+     */
+    public synchronized void setFrameStats(FrameStats frameStats)
+    {
+        this.frameStats = frameStats;
+        frameStatsLines = null;
+
+        dirtyRect.union(frameStatsRect);
+    }
+
+    public synchronized boolean isPreviewShown()
+    {
+        return isPreviewShown;
+    }
+
+    public synchronized boolean isGridShown()
+    {
+        return isGridShown;
+    }
+
+    public synchronized void setSize(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+
+        initSizes();
+    }
+
+    private void initColorToDrawable(Resources resources)
+    {
+        colorToDrawable[Cell.Color.BLUE.ordinal()] = resources.getDrawable(R.drawable.cell_blue);
+        colorToDrawable[Cell.Color.CYAN.ordinal()] = resources.getDrawable(R.drawable.cell_cyan);
+        colorToDrawable[Cell.Color.GREEN.ordinal()] = resources.getDrawable(R.drawable.cell_green);
+        colorToDrawable[Cell.Color.ORANGE.ordinal()] = resources.getDrawable(R.drawable.cell_orange);
+        colorToDrawable[Cell.Color.PURPLE.ordinal()] = resources.getDrawable(R.drawable.cell_magenta);
+        colorToDrawable[Cell.Color.RED.ordinal()] = resources.getDrawable(R.drawable.cell_red);
+        colorToDrawable[Cell.Color.YELLOW.ordinal()] = resources.getDrawable(R.drawable.cell_yellow);
+    }
+
+    private void initPaints(Resources resources)
+    {
+        framePaint.setStyle(Paint.Style.FILL);
+        framePaint.setColor(resources.getColor(R.color.field_frame_color));
+
+        interiorPaint.setStyle(Paint.Style.FILL);
+        interiorPaint.setColor(resources.getColor(R.color.field_interior_color));
+
+        gridPaint.setStyle(Paint.Style.FILL);
+        gridPaint.setColor(resources.getColor(R.color.grid_color));
+
+        statsPaint.setColor(resources.getColor(R.color.stats_text_color));
+        statsPaint.setTextAlign(Paint.Align.CENTER);
+        statsPaint.setAntiAlias(true);
+        statsPaint.setSubpixelText(true);
+
+        frameStatsPaint.setColor(resources.getColor(R.color.frame_stats_text_color));
+        frameStatsPaint.setAntiAlias(true);
+
+        frameStatsBackgroundPaint.setStyle(Paint.Style.FILL);
+        frameStatsBackgroundPaint.setColor(resources.getColor(R.color.frame_stats_background_color));
+    }
+
+    /**
+     * Read engine state and collect the area which changed since the previous frame
+     *
+     * @return -- true if something has to be redrawn
+     */
+    public synchronized boolean prepareFrame()
+    {
+        if ((tetrisEngine == null) || (glassRect == null))
+        {
+            return false;
+        }
+
+        readState();
+
+        if (framePiece != piece)
+        {
+            unionCells(pieceCells, glassRect, 0, 0);
+            piece = framePiece;
+            pieceCells = framePiece.getCells();
+            unionCells(pieceCells, glassRect, 0, 0);
+        }
+
+        if (frameNextPiece != nextPiece)
+        {
+            nextPiece = frameNextPiece;
+            nextPieceCells = frameNextPiece.getCells();
+            getPreviewCellOffset(nextPieceCells, previewCellOffset);
+            dirtyRect.union(previewRect);
+        }
+
+        if (updateStats())
+        {
+            dirtyRect.union(statsRect);
+        }
+
+        if ((frameStats != null) && frameStats.isSummaryDue(System.nanoTime()))
+        {
+            frameStatsLines = frameStats.getSummary();
+            dirtyRect.union(frameStatsRect);
+        }
+
+        if (frameSeaRows != null)
+        {
+            if (frameSeaRows != snapshotSeaRows)
+            {
+                sea = frameSea;
+                snapshotSeaRows = frameSeaRows;
+                diffSeaRows(frameSeaRows, frameSeaColors);
+            }
+        }
+        else if (frameSea != sea)
+        {
+            sea = frameSea;
+            updateSeaRows();
+        }
+
+        return !dirtyRect.isEmpty();
+    }
+
+    /**
+     * Take the area changed since the previous call
+     *
+     * @param res -- rectangle to put area to
+     * @return -- false if nothing changed
+     */
+    public synchronized boolean takeDirtyRect(Rect res)
+    {
+        if (dirtyRect.isEmpty())
+        {
+            return false;
+        }
+
+        res.set(dirtyRect);
+        dirtyRect.setEmpty();
+
+        return true;
+    }
+
+    /**
+     * Give back an area taken with takeDirtyRect() which was not drawn, it is redrawn with the next frame
+     */
+    public synchronized void addDirtyRect(Rect rect)
+    {
+        dirtyRect.union(rect);
+    }
+
+    /**
+     * Draw prepared frame, only the parts intersecting canvas clip are drawn
+     *
+     * Nothing is allocated here in steady state: paints, rects, texts and bitmaps are prepared in initSizes() or
+     * when the shown values change.
+     */
+    public synchronized void draw(Canvas canvas)
+    {
+        if ((tetrisEngine == null) || (glassRect == null) || (piece == null))
+        {
+            return;
+        }
+
+        repaintSeaRows();
+
+        if (!canvas.quickReject(backgroundRect.left, backgroundRect.top, backgroundRect.right, backgroundRect.bottom, Canvas.EdgeType.BW))
+        {
+            canvas.drawBitmap(backgroundBitmap, backgroundRect.left, backgroundRect.top, null);
+        }
+
+        if (!canvas.quickReject(glassRect.left, glassRect.top, glassRect.right, glassRect.bottom, Canvas.EdgeType.BW))
+        {
+            canvas.drawBitmap(seaBitmap, glassRect.left, glassRect.top, null);
+
+            for (int i = 0; i < pieceCells.size(); i++)
+            {
+                drawCell(canvas, pieceCells.get(i), glassRect, 0, 0);
+            }
+        }
+
+        if (isPreviewShown && !canvas.quickReject(previewRect.left, previewRect.top, previewRect.right, previewRect.bottom, Canvas.EdgeType.BW))
+        {
+            for (int i = 0; i < nextPieceCells.size(); i++)
+            {
+                drawCell(canvas, nextPieceCells.get(i), previewRect, previewCellOffset.x, previewCellOffset.y);
+            }
+        }
+
+        if (isStatsLayerDirty)
+        {
+            renderStats();
+        }
+
+        if (!canvas.quickReject(statsRect.left, statsRect.top, statsRect.right, statsRect.bottom, Canvas.EdgeType.BW))
+        {
+            canvas.drawBitmap(statsBitmap, statsRect.left, statsRect.top, null);
+        }
+
+        if ((frameStatsLines != null) && !canvas.quickReject(frameStatsRect.left, frameStatsRect.top, frameStatsRect.right, frameStatsRect.bottom,
+                Canvas.EdgeType.BW))
+        {
+            drawFrameStats(canvas);
+        }
+
+        drawnVersion = frameVersion;
+    }
+
+    private void drawFrameStats(Canvas canvas)
+    {
+        canvas.drawRect(frameStatsRect, frameStatsBackgroundPaint);
+
+        for (int i = 0; i < frameStatsLines.length; i++)
+        {
+            canvas.drawText(frameStatsLines[i], frameStatsRect.left + 2, frameStatsRect.top + frameStatsTextOriginY + (i * frameStatsLineHeight),
+                    frameStatsPaint);
+        }
+    }
+
+    /**
+     * Get snapshot version of the last frame drawn
+     *
+     * @return -- -1 if the frame was not read from a snapshot
+     */
+    public synchronized long getDrawnVersion()
+    {
+        return drawnVersion;
+    }
+
+    /**
+     * Read everything the frame needs at once, from a snapshot or under the engine monitor, so the values are
+     * consistent
+     */
+    private void readState()
+    {
+        if (snapshotSource != null)
+        {
+            TetrisSnapshot snapshot = snapshotSource.getSnapshot();
+            frameSea = snapshot.getSea();
+            frameSeaRows = snapshot.getSeaRows();
+            frameSeaColors = snapshot.getSeaColors();
+            framePiece = snapshot.getPiece();
+            frameNextPiece = snapshot.getNextPiece();
+            frameStatsValues[0] = snapshot.getScore();
+            frameStatsValues[1] = snapshot.getLineCount();
+            frameStatsValues[2] = snapshot.getSpeed();
+            frameStatsValues[3] = snapshot.getPieceCount();
+            frameVersion = snapshot.getVersion();
+            return;
+        }
+
+        frameSeaRows = null;
+        frameSeaColors = null;
+        frameVersion = -1;
+
+        synchronized (tetrisEngine)
+        {
+            frameSea = tetrisEngine.getSea();
+            framePiece = tetrisEngine.getPiece();
+            frameNextPiece = tetrisEngine.getNextPiece();
+            frameStatsValues[0] = tetrisEngine.getScore();
+            frameStatsValues[1] = tetrisEngine.getLineCount();
+            frameStatsValues[2] = tetrisEngine.getSpeed();
+            frameStatsValues[3] = tetrisEngine.getPieceCount();
+        }
+    }
+
+    /**
+     * Add cells bounds to the dirty area
+     */
+    private void unionCells(List<Cell> cells, Rect field, int offsetX, int offsetY)
+    {
+        if (cells == null)
+        {
+            return;
+        }
+
+        for (int i = 0; i < cells.size(); i++)
+        {
+            getCellRect(cells.get(i), field, offsetX, offsetY, changeRect);
+            dirtyRect.union(changeRect);
+        }
+    }
+
+    /**
+     * Build sea rows from the cells and compare them with the previous frame
+     */
+    private void updateSeaRows()
+    {
+        int width = tetrisEngine.getWidth();
+
+        for (int y = 0; y < newSeaRows.length; y++)
+        {
+            newSeaRows[y] = 0;
+        }
+
+        for (int i = 0; i < sea.size(); i++)
+        {
+            Cell c = sea.get(i);
+            newSeaRows[c.getY()] |= 1 << c.getX();
+            newSeaColors[(c.getY() * width) + c.getX()] = (byte) (c.getColor().ordinal() + 1);
+        }
+
+        for (int y = 0; y < newSeaRows.length; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                if ((newSeaRows[y] & (1 << x)) == 0)
+                {
+                    newSeaColors[(y * width) + x] = 0;
+                }
+            }
+        }
+
+        diffSeaRows(newSeaRows, newSeaColors);
+    }
+
+    /**
+     * Compare sea with the previous frame row by row, changed rows are marked for repainting
+     */
+    private void diffSeaRows(int[] newSeaRows, byte[] newSeaColors)
+    {
+        int width = tetrisEngine.getWidth();
+
+        for (int y = 0; y < seaRows.length; y++)
+        {
+            boolean changed = newSeaRows[y] != seaRows[y];
+            for (int x = 0; x < width; x++)
+            {
+                int i = (y * width) + x;
+                if (newSeaColors[i] != seaColors[i])
+                {
+                    seaColors[i] = newSeaColors[i];
+                    changed = true;
+                }
+            }
+
+            if (changed)
+            {
+                seaRows[y] = newSeaRows[y];
+                invalidateSeaRow(y);
+            }
+        }
+    }
+
+    private void invalidateSeaRow(int y)
+    {
+        dirtySeaRows[y] = true;
+
+        getSeaRowRect(y, changeRect);
+        changeRect.offset(glassRect.left, glassRect.top);
+        dirtyRect.union(changeRect);
+    }
+
+    private void invalidateSea()
+    {
+        if (glassRect == null)
+        {
+            return;
+        }
+
+        for (int y = 0; y < dirtySeaRows.length; y++)
+        {
+            invalidateSeaRow(y);
+        }
+    }
+
+    private void getSeaRowRect(int y, Rect res)
+    {
+        res.set(0, y * cellSize, glassRect.width(), (y + 1) * cellSize);
+    }
+
+    /**
+     * Bring backing bitmap up to date, only rows changed since the last frame are redrawn
+     */
+    private void repaintSeaRows()
+    {
+        int width = tetrisEngine.getWidth();
+
+        for (int y = 0; y < dirtySeaRows.length; y++)
+        {
+            if (!dirtySeaRows[y])
+            {
+                continue;
+            }
+
+            dirtySeaRows[y] = false;
+
+            // Row background comes from the background layer
+            getSeaRowRect(y, seaRowRect);
+            layerRowRect.set(seaRowRect);
+            layerRowRect.offset(glassRect.left - backgroundRect.left, glassRect.top - backgroundRect.top);
+            seaCanvas.drawBitmap(backgroundBitmap, layerRowRect, seaRowRect, null);
+
+            for (int x = 0; x < width; x++)
+            {
+                int color = seaColors[(y * width) + x];
+                if (color != 0)
+                {
+                    cellRect.set(x * cellSize, y * cellSize, (x + 1) * cellSize, (y + 1) * cellSize);
+                    seaCanvas.drawBitmap(cellAtlas.getBitmap(), cellAtlas.getSourceRect(color - 1), cellRect, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get cell bounding rectangle
+     *
+     * @param cell -- cell to bound
+     * @param field -- grid field
+     * @param offsetX -- arbitrary horizontal offset
+     * @param offsetY -- arbitrary vertical offset
+     * @param res -- rectangle to put result to
+     */
+    private void getCellRect(Cell cell, Rect field, int offsetX, int offsetY, Rect res)
+    {
+        TetrisLayout.getCellBounds(cell.getX(), cell.getY(), field.left, field.top, offsetX, offsetY, cellSize, bounds);
+
+        res.set(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    /**
+     * Get offset for preview cells, piece is centered in the preview field
+     *
+     * @param cells -- preview piece cells
+     * @param res -- point to put offset to
+     */
+    private void getPreviewCellOffset(List<Cell> cells, Point res)
+    {
+        TetrisLayout.getPreviewCellOffset(cells, cellSize, bounds);
+
+        res.set(bounds[0], bounds[1]);
+    }
+
+    private void drawCell(Canvas canvas, Cell cell, Rect field, int offsetX, int offsetY)
+    {
+        getCellRect(cell, field, offsetX, offsetY, cellRect);
+        canvas.drawBitmap(cellAtlas.getBitmap(), cellAtlas.getSourceRect(cell.getColor().ordinal()), cellRect, null);
+    }
+
+    private void drawField(Canvas canvas, Rect rect, Rect frameRect)
+    {
+        canvas.drawRect(frameRect, framePaint);
+        canvas.drawRect(rect, interiorPaint);
+    }
+
+    /**
+     * Format changed values into their buffers
+     *
+     * @return -- true if any value changed
+     */
+    private boolean updateStats()
+    {
+        boolean res = false;
+
+        for (int i = 0; i < STATS_COUNT; i++)
+        {
+            if (isStatsReset || (statsValues[i] != frameStatsValues[i]))
+            {
+                statsValues[i] = frameStatsValues[i];
+                statsCharsStart[i] = formatInt(frameStatsValues[i], statsChars[i]);
+                res = true;
+            }
+        }
+
+        isStatsReset = false;
+        if (res)
+        {
+            isStatsLayerDirty = true;
+        }
+
+        return res;
+    }
+
+    /**
+     * Put decimal digits of the value to the end of the buffer
+     *
+     * @return -- index of the first char
+     */
+    private static int formatInt(int value, char[] res)
+    {
+        int i = res.length;
+        long rest = Math.abs((long) value);
+
+        do
+        {
+            res[--i] = (char) ('0' + (rest % 10));
+            rest /= 10;
+        }
+        while (rest != 0);
+
+        if (value < 0)
+        {
+            res[--i] = '-';
+        }
+
+        return i;
+    }
+
+    private void renderStats()
+    {
+        isStatsLayerDirty = false;
+
+        statsCanvas.drawRect(0, 0, statsRect.width(), statsRect.height(), interiorPaint);
+
+        for (int i = 0; i < STATS_COUNT; i++)
+        {
+            statsCanvas.drawText(statsHeadings[i], statsTextOriginX, getStatsTextOriginY(i * 2), statsPaint);
+            statsCanvas.drawText(statsChars[i], statsCharsStart[i], MAX_INT_LENGTH - statsCharsStart[i], statsTextOriginX, getStatsTextOriginY((i * 2) + 1),
+                    statsPaint);
+        }
+    }
+
+    /**
+     * Get text baseline in the stats layer
+     */
+    private float getStatsTextOriginY(int line)
+    {
+        return (line * statsLineHeight) + (statsLineHeight / 2) + (statsFontHeight / 2);
+    }
+
+    /**
+     * Render frames, interiors and grid into the background layer
+     */
+    private void renderBackground()
+    {
+        backgroundBitmap.eraseColor(0);
+
+        Canvas canvas = new Canvas(backgroundBitmap);
+        canvas.translate(-backgroundRect.left, -backgroundRect.top);
+
+        drawField(canvas, glassRect, glassFrameRect);
+        drawField(canvas, previewRect, previewFrameRect);
+        drawField(canvas, statsRect, statsFrameRect);
+
+        if (isGridShown)
+        {
+            drawGrid(canvas, glassRect);
+        }
+    }
+
+    private void drawGrid(Canvas canvas, Rect rect)
+    {
+        for (int i = 0; i < tetrisEngine.getWidth(); i++)
+        {
+            canvas.drawRect(rect.left + (i * cellSize), rect.top, rect.left + (i * cellSize) + 1, rect.bottom, gridPaint);
+            canvas.drawRect(rect.left + (cellSize * (i + 1)) - 1, rect.top, rect.left + (cellSize * (i + 1)), rect.bottom, gridPaint);
+        }
+
+        for (int i = 0; i < tetrisEngine.getHeight(); i++)
+        {
+            canvas.drawRect(rect.left, rect.top + (cellSize * i), rect.right, rect.top + (cellSize * i) + 1, gridPaint);
+            canvas.drawRect(rect.left, rect.top + (cellSize * (i + 1)) - 1, rect.right, rect.top + (cellSize * (i + 1)), gridPaint);
+        }
+    }
+
+    private void initSizes()
+    {
+        if ((tetrisEngine == null) || (width == 0) || (height == 0))
+        {
+            return;
+        }
+
+        layout.layout(width, height, tetrisEngine.getWidth(), tetrisEngine.getHeight());
+        cellSize = layout.getCellSize();
+        cellAtlas = CellAtlas.getAtlas(colorToDrawable, Math.max(cellSize, 1));
+        previewRect = makeRect(layout.getPreviewBounds());
+        glassRect = makeRect(layout.getGlassBounds());
+        statsRect = makeRect(layout.getStatsBounds());
+
+        getFrameRect(previewRect, previewFrameRect);
+        getFrameRect(glassRect, glassFrameRect);
+        getFrameRect(statsRect, statsFrameRect);
+
+        Paint.FontMetrics fontMetrics = statsPaint.getFontMetrics();
+        statsFontHeight = fontMetrics.bottom - fontMetrics.top;
+        statsTextOriginX = statsRect.width() / 2;
+        statsLineHeight = statsRect.height() / (STATS_COUNT * 2);
+
+        Paint.FontMetrics frameStatsFontMetrics = frameStatsPaint.getFontMetrics();
+        frameStatsLineHeight = frameStatsFontMetrics.bottom - frameStatsFontMetrics.top;
+        frameStatsTextOriginY = -frameStatsFontMetrics.top;
+        frameStatsRect.set(glassRect.left, glassRect.top, glassRect.right, glassRect.top + (int) Math.ceil(frameStatsLineHeight * FRAME_STATS_LINE_COUNT));
+
+        if (seaBitmap != null)
+        {
+            seaBitmap.recycle();
+        }
+        seaBitmap = Bitmap.createBitmap(Math.max(glassRect.width(), 1), Math.max(glassRect.height(), 1), Bitmap.Config.ARGB_8888);
+        seaCanvas = new Canvas(seaBitmap);
+
+        backgroundRect.set(glassFrameRect);
+        backgroundRect.union(previewFrameRect);
+        backgroundRect.union(statsFrameRect);
+        if (backgroundBitmap != null)
+        {
+            backgroundBitmap.recycle();
+        }
+        backgroundBitmap = Bitmap.createBitmap(Math.max(backgroundRect.width(), 1), Math.max(backgroundRect.height(), 1), Bitmap.Config.ARGB_8888);
+        renderBackground();
+
+        if (statsBitmap != null)
+        {
+            statsBitmap.recycle();
+        }
+        statsBitmap = Bitmap.createBitmap(Math.max(statsRect.width(), 1), Math.max(statsRect.height(), 1), Bitmap.Config.ARGB_8888);
+        statsCanvas = new Canvas(statsBitmap);
+
+        // Everything is new for the first frame after size change
+        piece = null;
+        pieceCells = null;
+        nextPiece = null;
+        isStatsReset = true;
+        isStatsLayerDirty = true;
+        invalidateSea();
+        dirtyRect.set(0, 0, width, height);
+    }
+
+    private static Rect makeRect(int[] bounds)
+    {
+        return new Rect(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    private void getFrameRect(Rect rect, Rect res)
+    {
+        int border = TetrisLayout.FIELD_BORDER;
+
+        res.set(rect.left - border, rect.top - border, rect.right + border, rect.bottom + border);
+    }
+}
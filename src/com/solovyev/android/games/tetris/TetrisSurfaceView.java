@@ -0,0 +1,365 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import com.solovyev.android.games.tetris.R;
+import com.solovyev.android.games.tetris.engine.LatencyTracker;
+import com.solovyev.android.games.tetris.engine.ReplayPlayer;
+import com.solovyev.games.tetris.TetrisEngine;
+import com.solovyev.games.tetris.TetrisEvent;
+import com.solovyev.games.tetris.TetrisListener;
+
+
+/**
+ * Draw tetris on a surface from a dedicated render thread
+ *
+ * Engine events only mark the surface dirty, the render thread draws at most one frame per frame budget, so
+ * frame timing does not depend on the UI thread message queue, menus or dialogs. Only the area changed since the
+ * previous frame is locked and redrawn.
+ */
+public class TetrisSurfaceView extends SurfaceView implements SurfaceHolder.Callback, TetrisListener, TetrisDisplay
+{
+    private static final int MAX_FPS = 60;
+    private static final long FRAME_TIME = 1000 / MAX_FPS;
+
+    private TetrisEngine tetrisEngine;
+    private TetrisEngine shownEngine;
+    private TetrisRenderer tetrisRenderer;
+    private TetrisController tetrisController;
+    // Set on the UI thread, read by the render thread
+    private volatile LatencyTracker latencyTracker;
+    private volatile FrameStats frameStats;
+    private RenderThread renderThread;
+    private int backgroundColor;
+
+    private boolean destroyed = false;
+
+    public TetrisSurfaceView(Context context, AttributeSet attributeSet)
+    {
+        super(context, attributeSet);
+
+        tetrisRenderer = new TetrisRenderer(context.getResources());
+        tetrisController = new TetrisController(this);
+        backgroundColor = context.getResources().getColor(R.color.background_color);
+
+        getHolder().addCallback(this);
+
+        setFocusable(true);
+
+        setFocusableInTouchMode(true);
+
+        Log.d(this.getClass().getName(), "created: " + this);
+    }
+
+    public void setPreviewShown(boolean isPreviewShown)
+    {
+        tetrisRenderer.setPreviewShown(isPreviewShown);
+        requestRender();
+    }
+
+    public void setGridShown(boolean isGridShown)
+    {
+        tetrisRenderer.setGridShown(isGridShown);
+        requestRender();
+    }
+
+    public boolean isPreviewShown()
+    {
+        return tetrisRenderer.isPreviewShown();
+    }
+
+    public boolean isGridShown()
+    {
+        return tetrisRenderer.isGridShown();
+    }
+
+    public void setTetrisEngine(TetrisEngine tetrisEngine)
+    {
+        this.tetrisEngine = tetrisEngine;
+        showEngine(tetrisEngine);
+    }
+
+    public void setLatencyTracker(LatencyTracker latencyTracker)
+    {
+        this.latencyTracker = latencyTracker;
+    }
+
+    public void setFrameStats(FrameStats frameStats)
+    {
+        this.frameStats = frameStats;
+        tetrisRenderer.setFrameStats(frameStats);
+        requestRender();
+    }
+
+    public void setReplayPlayer(ReplayPlayer replayPlayer)
+    {
+        tetrisController.setReplayPlayer(replayPlayer);
+        showEngine((replayPlayer != null) ? replayPlayer.getEngine() : tetrisEngine);
+    }
+
+    /**
+     * Draw an engine and listen to it instead of the one shown before
+     */
+    private void showEngine(TetrisEngine engine)
+    {
+        if (shownEngine != null)
+        {
+            shownEngine.removeTetrisListener(this);
+        }
+
+        shownEngine = engine;
+        tetrisRenderer.setTetrisEngine(engine);
+        tetrisController.setTetrisEngine(engine);
+        engine.addTetrisListener(this);
+        requestRender();
+    }
+
+    @Override
+    public void stateChanged(TetrisEvent e)
+    {
+        FrameStats stats = frameStats;
+        if (stats != null)
+        {
+            stats.frameRequested(System.nanoTime());
+        }
+
+        requestRender();
+    }
+
+    private synchronized void requestRender()
+    {
+        if (renderThread != null)
+        {
+            renderThread.requestRender();
+        }
+    }
+
+    @Override
+    public synchronized void surfaceCreated(SurfaceHolder holder)
+    {
+        renderThread = new RenderThread(holder);
+        renderThread.start();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height)
+    {
+        tetrisRenderer.setSize(width, height);
+        requestRender();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder)
+    {
+        stopRenderThread();
+    }
+
+    /**
+     * Stop render thread and wait for it, surface can not be touched after surfaceDestroyed() returns
+     */
+    private void stopRenderThread()
+    {
+        RenderThread thread;
+        synchronized (this)
+        {
+            thread = renderThread;
+            renderThread = null;
+        }
+
+        if (thread == null)
+        {
+            return;
+        }
+
+        thread.quit();
+
+        boolean retry = true;
+        while (retry)
+        {
+            try
+            {
+                thread.join();
+                retry = false;
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+    }
+
+    /**
+     * Tell the latency tracker which engine state was drawn, replay frames are not counted
+     */
+    private void frameShown()
+    {
+        LatencyTracker tracker = latencyTracker;
+        if ((tracker != null) && (shownEngine == tetrisEngine))
+        {
+            long version = tetrisRenderer.getDrawnVersion();
+            if (version >= 0)
+            {
+                tracker.frameShown(version, System.nanoTime());
+            }
+        }
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event)
+    {
+        return tetrisController.onKeyDown(keyCode, event);
+    }
+
+    @Override
+    public boolean onTrackballEvent(MotionEvent motionEvent)
+    {
+        return tetrisController.onTrackballEvent(motionEvent);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent motionEvent)
+    {
+        return tetrisController.onTouchEvent(motionEvent);
+    }
+
+    public synchronized void destroy()
+    {
+        if (!destroyed)
+        {
+            destroyed = true;
+
+            if (shownEngine != null)
+            {
+                shownEngine.removeTetrisListener(this);
+            }
+
+            Log.d(this.getClass().getName(), "deleted: " + this);
+        }
+    }
+
+    /**
+     * Draws a frame when something changed, frames are capped to MAX_FPS
+     */
+    private class RenderThread extends Thread
+    {
+        private SurfaceHolder surfaceHolder;
+        private boolean running = true;
+        private boolean dirty = true;
+        private Rect dirtyRect = new Rect();
+
+        public RenderThread(SurfaceHolder surfaceHolder)
+        {
+            super("TetrisRenderThread");
+
+            this.surfaceHolder = surfaceHolder;
+        }
+
+        public synchronized void requestRender()
+        {
+            dirty = true;
+            notify();
+        }
+
+        public synchronized void quit()
+        {
+            running = false;
+            notify();
+        }
+
+        private synchronized boolean waitForFrame()
+        {
+            while (running && !dirty)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    return false;
+                }
+            }
+
+            dirty = false;
+
+            return running;
+        }
+
+        @Override
+        public void run()
+        {
+            while (waitForFrame())
+            {
+                long frameStart = SystemClock.uptimeMillis();
+
+                drawFrame();
+
+                long sleepTime = FRAME_TIME - (SystemClock.uptimeMillis() - frameStart);
+                if (sleepTime > 0)
+                {
+                    try
+                    {
+                        Thread.sleep(sleepTime);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void drawFrame()
+        {
+            if (!tetrisRenderer.prepareFrame() || !tetrisRenderer.takeDirtyRect(dirtyRect))
+            {
+                FrameStats stats = frameStats;
+                if (stats != null)
+                {
+                    stats.frameSkipped();
+                }
+                return;
+            }
+
+            long startTime = System.nanoTime();
+
+            // Surface may grow the rectangle when the previous buffer contents are not preserved
+            Canvas canvas = surfaceHolder.lockCanvas(dirtyRect);
+            if (canvas == null)
+            {
+                // Surface is not there, keep the area for the frame drawn when it is
+                tetrisRenderer.addDirtyRect(dirtyRect);
+                return;
+            }
+
+            try
+            {
+                canvas.drawColor(backgroundColor);
+                tetrisRenderer.draw(canvas);
+            }
+            finally
+            {
+                surfaceHolder.unlockCanvasAndPost(canvas);
+            }
+
+            frameShown();
+
+            FrameStats stats = frameStats;
+            if (stats != null)
+            {
+                stats.record(startTime, System.nanoTime());
+            }
+        }
+    }
+}
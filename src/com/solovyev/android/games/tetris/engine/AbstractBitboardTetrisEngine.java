@@ -0,0 +1,1088 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+import com.solovyev.games.tetris.TetrisEngine;
+import com.solovyev.games.tetris.TetrisEvent;
+import com.solovyev.games.tetris.TetrisListener;
+
+
+/**
+ * Tetris engine keeping the sea as a bitboard
+ *
+ * Game rules, timing and scoring are the same as in the engine library, the difference is in the sea storage:
+ * collision checks are a mask test per cell and line detection is a single compare per row, so the cost of a
+ * move does not grow as the glass fills up.
+ *
+ * The falling piece is kept as shape, rotation state and position over {@link PieceRotations} tables, so moves and
+ * rotations do not allocate, a library Piece is made only when asked for and is cached per state.
+ *
+ * Listeners get {@link TetrisChangeEvent}s telling what changed and where, so they do not have to query the
+ * whole engine on every event. Events are delivered by a {@link TetrisEventDispatcher} thread, outside the engine
+ * lock, so a slow listener does not hold up gravity or input. After every change an immutable
+ * {@link TetrisSnapshot} is published, readers get it without taking the engine lock.
+ *
+ * Snapshot and events are published once at the end of every operation taking the lock, a tick or an input, not
+ * after every change in it, so a line clear costs one snapshot. Events go out after the snapshot, a listener
+ * reading the snapshot sees all the changes it is told about.
+ *
+ * {@link EngineMetrics} count ticks, input and line clears. With timing on they also time ticks, listeners and
+ * waits for the engine lock at the entry points threads contend for: timer ticks and input.
+ */
+public abstract class AbstractBitboardTetrisEngine implements TetrisEngine, TetrisSnapshotSource
+{
+    private static final int FREEFALL_DELAY = 1;
+    private static final int MAX_SPEED = 10;
+    private static final int TIMERTICK = 20;
+    private static final int NO_PIECE = -1;
+    private static final GameState[] GAME_STATES = GameState.values();
+    private static final Cell.Color[] COLORS = Cell.Color.values();
+
+    // Margin around the glass for piece positions in the piece cache, cells may be up to 3 cells off position
+    private static final int PIECE_CACHE_MARGIN = 4;
+
+    private int width;
+    private int height;
+    private int lineCount;
+    private int pieceCount;
+    private int score;
+    private int speed;
+    private int delay;
+    private int moveTimer;
+    private GameState gameState;
+    private int nextPieceShape;
+    private int pieceShape;
+    private int pieceRotation;
+    private int pieceX;
+    private int pieceY;
+    private Piece[] pieceCache;
+    private Sea sea;
+    private PieceGenerator pieceGenerator;
+    private SpeedCurve speedCurve;
+    private List<TetrisListener> listenerList = new CopyOnWriteArrayList<TetrisListener>();
+    private TetrisEventDispatcher eventDispatcher = new TetrisEventDispatcher(new TetrisListener()
+        {
+            @Override
+            public void stateChanged(TetrisEvent e)
+            {
+                fireStateChanged(e);
+            }
+        });
+
+    // Glass area touched by the change being reported, empty when left >= right
+    private int changeLeft;
+    private int changeTop;
+    private int changeRight;
+    private int changeBottom;
+    private int[] removedRows;
+
+    // Version grows with every change, the snapshot is stale until the end of the operation making it
+    private long version;
+    private boolean isSnapshotStale;
+    private volatile TetrisSnapshot snapshot;
+    private List<TetrisEvent> pendingEvents = new ArrayList<TetrisEvent>();
+
+    // Ticks run since the game start, input is recorded against it
+    private long tick;
+    private TetrisRecorder recorder;
+
+    // Updated with the engine lock held, timing is read without it
+    private EngineMetrics metrics = new EngineMetrics();
+
+    // Updated by the dispatcher thread under its own monitor, never under the engine lock
+    private EngineMetrics.Timing dispatchTiming = new EngineMetrics.Timing();
+    private volatile boolean timingEnabled;
+
+    public AbstractBitboardTetrisEngine(int width, int height)
+    {
+        this(width, height, new PieceGenerator(System.currentTimeMillis()));
+    }
+
+    public AbstractBitboardTetrisEngine(int width, int height, PieceGenerator pieceGenerator)
+    {
+        this(width, height, pieceGenerator, SpeedCurve.DEFAULT);
+    }
+
+    public AbstractBitboardTetrisEngine(int width, int height, PieceGenerator pieceGenerator, SpeedCurve speedCurve)
+    {
+        this.width = width;
+        this.height = height;
+        this.pieceGenerator = pieceGenerator;
+        this.speedCurve = speedCurve;
+
+        sea = new Sea(width, height);
+        pieceCache = new Piece[PieceRotations.getShapeCount() * PieceRotations.ROTATION_COUNT * (width + (PIECE_CACHE_MARGIN * 2))
+                * (height + (PIECE_CACHE_MARGIN * 2))];
+        removedRows = new int[height];
+        clearChange();
+
+        initParameters();
+        initSea();
+        initPieces();
+
+        gameState = GameState.IDLE;
+
+        isSnapshotStale = true;
+        publishChanges();
+    }
+
+    public synchronized void start()
+    {
+        if (gameState == GameState.IDLE)
+        {
+            tick = 0;
+            if (recorder != null)
+            {
+                recorder.gameStarted(width, height, pieceGenerator.getState(), nextPieceShape);
+            }
+
+            gameState = GameState.RUNNING;
+            startTimer();
+            postUpdate(TetrisChangeEvent.Kind.GAME_STATE_CHANGED);
+            publishChanges();
+        }
+    }
+
+    public synchronized void stop()
+    {
+        if (gameState != GameState.IDLE)
+        {
+            if ((recorder != null) && (gameState != GameState.GAMEOVER))
+            {
+                recorder.gameEnded(tick);
+            }
+
+            stopTimer();
+            initParameters();
+            initSea();
+            initPieces();
+            gameState = GameState.IDLE;
+            addChangeRows(0, height);
+            postUpdate(TetrisChangeEvent.Kind.GAME_STATE_CHANGED);
+            postUpdate(TetrisChangeEvent.Kind.NEXT_PIECE_CHANGED);
+            postUpdate(TetrisChangeEvent.Kind.SCORE_CHANGED);
+            publishChanges();
+        }
+    }
+
+    public synchronized void pause()
+    {
+        if (gameState == GameState.RUNNING)
+        {
+            synchronizeTimer();
+            gameState = GameState.PAUSED;
+            stopTimer();
+            postUpdate(TetrisChangeEvent.Kind.GAME_STATE_CHANGED);
+            publishChanges();
+        }
+    }
+
+    public synchronized void resume()
+    {
+        if (gameState == GameState.PAUSED)
+        {
+            gameState = GameState.RUNNING;
+            startTimer();
+            postUpdate(TetrisChangeEvent.Kind.GAME_STATE_CHANGED);
+            publishChanges();
+        }
+    }
+
+    private void initParameters()
+    {
+        lineCount = 0;
+        pieceCount = 0;
+        score = 0;
+        speed = 1;
+        delay = speedCurve.getInitialDelay();
+        moveTimer = 0;
+    }
+
+    private void initSea()
+    {
+        sea.clear();
+    }
+
+    private void initPieces()
+    {
+        pieceShape = NO_PIECE;
+        nextPieceShape = getRandomShape();
+    }
+
+    public void movePieceLeft()
+    {
+        sendInput(TetrisRecorder.Action.MOVE_LEFT);
+    }
+
+    public void movePieceRight()
+    {
+        sendInput(TetrisRecorder.Action.MOVE_RIGHT);
+    }
+
+    public void rotatePieceCounterclockwise()
+    {
+        sendInput(TetrisRecorder.Action.ROTATE_COUNTERCLOCKWISE);
+    }
+
+    public void rotatePieceClockwise()
+    {
+        sendInput(TetrisRecorder.Action.ROTATE_CLOCKWISE);
+    }
+
+    public void dropPiece()
+    {
+        sendInput(TetrisRecorder.Action.DROP);
+    }
+
+    private void sendInput(TetrisRecorder.Action action)
+    {
+        long waitStart = getLockWaitStart();
+        synchronized (this)
+        {
+            lockAcquired(waitStart);
+            synchronizeTimer();
+            applyInput(action);
+            publishChanges();
+        }
+    }
+
+    /**
+     * Apply input at the current tick, called with the engine lock held
+     */
+    protected void applyInput(TetrisRecorder.Action action)
+    {
+        // Drop is only taken while the piece is not falling already
+        boolean isAccepted = (action == TetrisRecorder.Action.DROP) ? (gameState == GameState.RUNNING) : isInputAccepted();
+        metrics.addInput(isAccepted);
+        if (!isAccepted)
+        {
+            return;
+        }
+
+        record(action);
+
+        switch (action)
+        {
+        case MOVE_LEFT:
+            translatePiece(-1, 0);
+            break;
+        case MOVE_RIGHT:
+            translatePiece(1, 0);
+            break;
+        case ROTATE_CLOCKWISE:
+            rotatePiece(PieceRotations.rotateClockwise(pieceRotation));
+            break;
+        case ROTATE_COUNTERCLOCKWISE:
+            rotatePiece(PieceRotations.rotateCounterclockwise(pieceRotation));
+            break;
+        case DROP:
+            freeFall();
+            break;
+        default:
+            break;
+        }
+    }
+
+    private boolean isInputAccepted()
+    {
+        return (gameState == GameState.RUNNING) || (gameState == GameState.FREEFALL);
+    }
+
+    private void record(TetrisRecorder.Action action)
+    {
+        if (recorder != null)
+        {
+            recorder.input(tick, action);
+        }
+    }
+
+    /**
+     * Set recorder of games started from now on, null to stop recording
+     */
+    public synchronized void setRecorder(TetrisRecorder recorder)
+    {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Get a copy of the metrics collected since the engine was made or the metrics were cleared
+     */
+    public synchronized EngineMetrics getMetrics()
+    {
+        return new EngineMetrics(metrics);
+    }
+
+    /**
+     * Get a copy of time spent in listeners, on the dispatcher thread, does not take the engine lock
+     */
+    public EngineMetrics.Timing getDispatchTiming()
+    {
+        synchronized (dispatchTiming)
+        {
+            return new EngineMetrics.Timing(dispatchTiming);
+        }
+    }
+
+    public synchronized void clearMetrics()
+    {
+        metrics.clear();
+        synchronized (dispatchTiming)
+        {
+            dispatchTiming.clear();
+        }
+    }
+
+    /**
+     * Turn timing of ticks, listeners and lock waits on or off, it costs a few clock reads per tick and input
+     */
+    public void setTimingEnabled(boolean timingEnabled)
+    {
+        this.timingEnabled = timingEnabled;
+    }
+
+    public boolean isTimingEnabled()
+    {
+        return timingEnabled;
+    }
+
+    /**
+     * Get time to count a wait for the engine lock from, called right before taking the lock
+     *
+     * @return -- 0 if timing is off
+     */
+    protected long getLockWaitStart()
+    {
+        return timingEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Count a wait for the engine lock, called right after taking it
+     *
+     * @param waitStart -- value of getLockWaitStart() taken before the lock
+     */
+    protected void lockAcquired(long waitStart)
+    {
+        if (waitStart != 0)
+        {
+            metrics.getLockWaitTiming().add(System.nanoTime() - waitStart);
+        }
+    }
+
+    /**
+     * Get number of ticks run since the game start, ticks do not run while the game is paused
+     */
+    public synchronized long getGameTick()
+    {
+        return tick;
+    }
+
+    /**
+     * Set the piece generator state and the first piece of the next game, used to start a recorded game
+     */
+    synchronized void setStartState(long generatorState, int nextPieceShape)
+    {
+        if (gameState != GameState.IDLE)
+        {
+            throw new IllegalStateException("game is running: " + gameState);
+        }
+
+        pieceGenerator.setState(generatorState);
+        this.nextPieceShape = nextPieceShape;
+        version++;
+        isSnapshotStale = true;
+        publishChanges();
+    }
+
+    /**
+     * Save everything the game depends on, enough to go on from this point with restoreState()
+     */
+    synchronized byte[] saveState()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeLong(tick);
+            out.writeByte(gameState.ordinal());
+            out.writeInt(lineCount);
+            out.writeInt(pieceCount);
+            out.writeInt(score);
+            out.writeInt(speed);
+            out.writeInt(delay);
+            out.writeInt(moveTimer);
+            out.writeByte(pieceShape);
+            out.writeByte(pieceRotation);
+            out.writeInt(pieceX);
+            out.writeInt(pieceY);
+            out.writeByte(nextPieceShape);
+            out.writeLong(pieceGenerator.getState());
+
+            // Row masks, then colors of the set cells only
+            for (int y = 0; y < height; y++)
+            {
+                out.writeInt(sea.getRow(y));
+            }
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    if (sea.isContaining(x, y))
+                    {
+                        out.writeByte(sea.getColor(x, y).ordinal());
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // Memory stream does not throw
+            throw new IllegalStateException(e.toString());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Go back to a state saved by saveState() on an engine of the same size, the timer is started or stopped to
+     * match the game state
+     */
+    synchronized void restoreState(byte[] state)
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        try
+        {
+            tick = in.readLong();
+            gameState = GAME_STATES[in.readByte()];
+            lineCount = in.readInt();
+            pieceCount = in.readInt();
+            score = in.readInt();
+            speed = in.readInt();
+            delay = in.readInt();
+            moveTimer = in.readInt();
+            pieceShape = in.readByte();
+            pieceRotation = in.readByte();
+            pieceX = in.readInt();
+            pieceY = in.readInt();
+            nextPieceShape = in.readByte();
+            pieceGenerator.setState(in.readLong());
+
+            int[] rows = new int[height];
+            for (int y = 0; y < height; y++)
+            {
+                rows[y] = in.readInt();
+            }
+            sea.clear();
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    if ((rows[y] & (1 << x)) != 0)
+                    {
+                        sea.add(x, y, COLORS[in.readByte()]);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("malformed engine state: " + e);
+        }
+
+        stopTimer();
+        if (isInputAccepted())
+        {
+            startTimer();
+        }
+
+        addChangeRows(0, height);
+        postUpdate(TetrisChangeEvent.Kind.GAME_STATE_CHANGED);
+        postUpdate(TetrisChangeEvent.Kind.NEXT_PIECE_CHANGED);
+        postUpdate(TetrisChangeEvent.Kind.SCORE_CHANGED);
+        publishChanges();
+    }
+
+    public synchronized Piece getPiece()
+    {
+        if (pieceShape == NO_PIECE)
+        {
+            return Piece.NULL;
+        }
+
+        return getCachedPiece(pieceShape, pieceRotation, pieceX, pieceY);
+    }
+
+    /**
+     * Get settled cells, the list is read only and is shared between calls until the sea changes
+     */
+    public synchronized List<Cell> getSea()
+    {
+        return sea.getCells();
+    }
+
+    public TetrisSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    public synchronized Piece getNextPiece()
+    {
+        return PieceRotations.getShape(nextPieceShape);
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public synchronized int getScore()
+    {
+        return score;
+    }
+
+    public synchronized GameState getGameState()
+    {
+        return gameState;
+    }
+
+    public synchronized int getLineCount()
+    {
+        return lineCount;
+    }
+
+    public synchronized int getSpeed()
+    {
+        return speed;
+    }
+
+    public synchronized int getPieceCount()
+    {
+        return pieceCount;
+    }
+
+    /**
+     * Get settled cells storage, changes made through it are not reported to listeners
+     */
+    protected Sea getSeaBoard()
+    {
+        return sea;
+    }
+
+    protected PieceGenerator getPieceGenerator()
+    {
+        return pieceGenerator;
+    }
+
+    protected abstract void startTimer();
+
+    protected abstract void stopTimer();
+
+    /**
+     * Called before input is applied, timers which do not call timerEvent() on every tick bring the engine up to
+     * the current tick here, so input lands at the same tick as with a fixed rate timer
+     */
+    protected void synchronizeTimer()
+    {
+    }
+
+    /**
+     * Called at the start of every tick which does something, after the input of the previous tick, timers
+     * queueing input apply the input due by this tick here
+     */
+    protected void beginTick()
+    {
+    }
+
+    /**
+     * Called when the next step moved closer than the timer expects, e.g. when a piece is dropped
+     */
+    protected void scheduleChanged()
+    {
+    }
+
+    private int getRandomShape()
+    {
+        return pieceGenerator.nextInt(PieceRotations.getShapeCount());
+    }
+
+    /**
+     * Pieces are immutable, so one made for a state is kept and given out every time the piece is in that state
+     */
+    private Piece getCachedPiece(int shape, int rotation, int x, int y)
+    {
+        int cacheWidth = width + (PIECE_CACHE_MARGIN * 2);
+        int cacheHeight = height + (PIECE_CACHE_MARGIN * 2);
+        int index = (((((shape * PieceRotations.ROTATION_COUNT) + rotation) * cacheWidth) + x + PIECE_CACHE_MARGIN) * cacheHeight) + y + PIECE_CACHE_MARGIN;
+
+        Piece res = pieceCache[index];
+        if (res == null)
+        {
+            res = PieceRotations.makePiece(shape, rotation, x, y);
+            pieceCache[index] = res;
+        }
+
+        return res;
+    }
+
+    /**
+     * Check that all piece cells are inside the glass and do not hit the sea
+     */
+    private boolean isPlaceable(int shape, int rotation, int x, int y)
+    {
+        int left = x + PieceRotations.getLeft(shape, rotation);
+        int top = y + PieceRotations.getTop(shape, rotation);
+        int bottom = y + PieceRotations.getBottom(shape, rotation);
+
+        if ((left < 0) || (top < 0) || ((x + PieceRotations.getRight(shape, rotation)) > width) || (bottom > height))
+        {
+            return false;
+        }
+
+        for (int row = top; row < bottom; row++)
+        {
+            if ((sea.getRow(row) & (PieceRotations.getRowMask(shape, rotation, row - top) << left)) != 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isSeaOverlapping(int shape, int rotation, int x, int y)
+    {
+        for (int i = 0; i < PieceRotations.getCellCount(shape); i++)
+        {
+            if (sea.isContaining(x + PieceRotations.getCellX(shape, rotation, i), y + PieceRotations.getCellY(shape, rotation, i)))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void freeFall()
+    {
+        if (gameState == GameState.RUNNING)
+        {
+            gameState = GameState.FREEFALL;
+            moveTimer = 0;
+            postUpdate(TetrisChangeEvent.Kind.GAME_STATE_CHANGED);
+            scheduleChanged();
+        }
+    }
+
+    private boolean translatePiece(int dx, int dy)
+    {
+        if (pieceShape == NO_PIECE)
+        {
+            return false;
+        }
+
+        if (!isPlaceable(pieceShape, pieceRotation, pieceX + dx, pieceY + dy))
+        {
+            return false;
+        }
+
+        addChangeCells();
+        pieceX += dx;
+        pieceY += dy;
+        addChangeCells();
+        postUpdate(TetrisChangeEvent.Kind.PIECE_MOVED);
+
+        return true;
+    }
+
+    private boolean rotatePiece(int rotation)
+    {
+        if (pieceShape == NO_PIECE)
+        {
+            return false;
+        }
+
+        if (!isPlaceable(pieceShape, rotation, pieceX, pieceY))
+        {
+            return false;
+        }
+
+        addChangeCells();
+        pieceRotation = rotation;
+        addChangeCells();
+        postUpdate(TetrisChangeEvent.Kind.PIECE_ROTATED);
+
+        return true;
+    }
+
+    private void sinkPiece()
+    {
+        if (pieceShape == NO_PIECE)
+        {
+            return;
+        }
+
+        Cell.Color color = PieceRotations.getColor(pieceShape);
+        for (int i = 0; i < PieceRotations.getCellCount(pieceShape); i++)
+        {
+            sea.add(pieceX + PieceRotations.getCellX(pieceShape, pieceRotation, i), pieceY + PieceRotations.getCellY(pieceShape, pieceRotation, i), color);
+        }
+        addChangeCells();
+        pieceShape = NO_PIECE;
+        postUpdate(TetrisChangeEvent.Kind.PIECE_LOCKED);
+
+        int removedRowCount = sea.pumpout(removedRows);
+        if (removedRowCount != 0)
+        {
+            lineCount += removedRowCount;
+            metrics.addLineClear(removedRowCount);
+
+            int[] clearedRows = new int[removedRowCount];
+            System.arraycopy(removedRows, 0, clearedRows, 0, removedRowCount);
+
+            // Everything above the lowest removed row moves down
+            addChangeRows(0, clearedRows[removedRowCount - 1] + 1);
+            postUpdate(TetrisChangeEvent.Kind.LINES_CLEARED, clearedRows);
+        }
+
+        adjustScoreSpeedDelay();
+    }
+
+    private void newPiece()
+    {
+        pieceShape = nextPieceShape;
+        pieceRotation = 0;
+        pieceX = (width / 2) - 2;
+        pieceY = 0;
+
+        if (isSeaOverlapping(pieceShape, pieceRotation, pieceX, pieceY))
+        {
+            gameOver();
+            return;
+        }
+
+        addChangeCells();
+        postUpdate(TetrisChangeEvent.Kind.PIECE_MOVED);
+
+        pieceCount++;
+        adjustScoreSpeedDelay();
+        nextPieceShape = getRandomShape();
+        moveTimer = delay;
+        postUpdate(TetrisChangeEvent.Kind.NEXT_PIECE_CHANGED);
+    }
+
+    private void gameOver()
+    {
+        if (recorder != null)
+        {
+            recorder.gameEnded(tick);
+        }
+
+        stopTimer();
+        pieceShape = NO_PIECE;
+        gameState = GameState.GAMEOVER;
+        postUpdate(TetrisChangeEvent.Kind.GAME_STATE_CHANGED);
+    }
+
+    private void adjustScoreSpeedDelay()
+    {
+        int previousScore = score;
+        int previousSpeed = speed;
+
+        score = speedCurve.getScore(lineCount, pieceCount);
+        speed = (speed < MAX_SPEED) ? speedCurve.getSpeed(score) : MAX_SPEED;
+        delay = speedCurve.getDelay(speed);
+
+        if ((score != previousScore) || (speed != previousSpeed))
+        {
+            postUpdate(TetrisChangeEvent.Kind.SCORE_CHANGED);
+        }
+    }
+
+    private void clearChange()
+    {
+        changeLeft = width;
+        changeTop = height;
+        changeRight = 0;
+        changeBottom = 0;
+    }
+
+    private void addChangeCells()
+    {
+        changeLeft = Math.min(changeLeft, pieceX + PieceRotations.getLeft(pieceShape, pieceRotation));
+        changeTop = Math.min(changeTop, pieceY + PieceRotations.getTop(pieceShape, pieceRotation));
+        changeRight = Math.max(changeRight, pieceX + PieceRotations.getRight(pieceShape, pieceRotation));
+        changeBottom = Math.max(changeBottom, pieceY + PieceRotations.getBottom(pieceShape, pieceRotation));
+    }
+
+    private void addChangeRows(int top, int bottom)
+    {
+        changeLeft = 0;
+        changeTop = Math.min(changeTop, top);
+        changeRight = width;
+        changeBottom = Math.max(changeBottom, bottom);
+    }
+
+    private void postUpdate(TetrisChangeEvent.Kind kind)
+    {
+        postUpdate(kind, null);
+    }
+
+    /**
+     * Report a change covering the area collected so far, the area is cleared afterwards, the event goes out with
+     * the next publishChanges()
+     */
+    private void postUpdate(TetrisChangeEvent.Kind kind, int[] clearedRows)
+    {
+        version++;
+        isSnapshotStale = true;
+
+        // Nobody to tell, e.g. headless runs
+        if (listenerList.isEmpty())
+        {
+            clearChange();
+            return;
+        }
+
+        pendingEvents.add(new TetrisChangeEvent(this, kind, gameState, changeLeft, changeTop, changeRight, changeBottom, clearedRows));
+        clearChange();
+    }
+
+    /**
+     * Publish a snapshot if anything changed since the last one, then hand events of the changes to the
+     * dispatcher, called with the engine lock held at the end of every operation which may change the state
+     */
+    protected void publishChanges()
+    {
+        if (!isSnapshotStale)
+        {
+            return;
+        }
+
+        isSnapshotStale = false;
+        snapshot = new TetrisSnapshot(version, gameState, score, lineCount, speed, pieceCount, getPiece(), getNextPiece(), sea.getCells(), sea.getRowsCopy(),
+                sea.getColorsCopy());
+
+        for (int i = 0; i < pendingEvents.size(); i++)
+        {
+            eventDispatcher.post(pendingEvents.get(i));
+        }
+        pendingEvents.clear();
+    }
+
+    /**
+     * Get version of the state, it grows with every change, the snapshot gets it when it is published
+     */
+    protected long getVersion()
+    {
+        return version;
+    }
+
+    public void timerEvent()
+    {
+        long waitStart = getLockWaitStart();
+        synchronized (this)
+        {
+            lockAcquired(waitStart);
+            runTick();
+            publishChanges();
+        }
+    }
+
+    /**
+     * Run a tick, timed if timing is on, called with the engine lock held
+     */
+    private void runTick()
+    {
+        if (!timingEnabled)
+        {
+            nextTick();
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        nextTick();
+        metrics.getTickTiming().add(System.nanoTime() - startTime);
+    }
+
+    private void nextTick()
+    {
+        // A timer may still fire once after it was stopped
+        if (!isInputAccepted())
+        {
+            return;
+        }
+
+        // State after the previous tick and the input at it
+        if ((recorder != null) && recorder.isKeyframeDue(tick))
+        {
+            recorder.keyframe(tick, saveState());
+        }
+
+        beginTick();
+
+        tick++;
+        metrics.addTicks(1);
+
+        if (moveTimer != 0)
+        {
+            moveTimer--;
+            return;
+        }
+
+        switch (gameState)
+        {
+        case RUNNING:
+            if (pieceShape == NO_PIECE)
+            {
+                newPiece();
+            }
+            else if (!translatePiece(0, 1))
+            {
+                sinkPiece();
+            }
+            else
+            {
+                metrics.addGravityStep();
+                moveTimer = delay;
+            }
+            break;
+        case FREEFALL:
+            if (pieceShape == NO_PIECE)
+            {
+                gameState = GameState.RUNNING;
+                postUpdate(TetrisChangeEvent.Kind.GAME_STATE_CHANGED);
+            }
+            else if (!translatePiece(0, 1))
+            {
+                sinkPiece();
+            }
+            else
+            {
+                metrics.addGravityStep();
+                moveTimer = FREEFALL_DELAY;
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Run a number of timer ticks at once, same as calling timerEvent() that many times but idle ticks are
+     * skipped in one go
+     */
+    public synchronized void advance(int ticks)
+    {
+        while ((ticks > 0) && ((gameState == GameState.RUNNING) || (gameState == GameState.FREEFALL)))
+        {
+            if (moveTimer != 0)
+            {
+                int idleTicks = Math.min(moveTimer, ticks);
+                moveTimer -= idleTicks;
+                ticks -= idleTicks;
+                tick += idleTicks;
+                metrics.addTicks(idleTicks);
+            }
+            else
+            {
+                runTick();
+                ticks--;
+            }
+        }
+
+        publishChanges();
+    }
+
+    /**
+     * Get number of idle ticks before the next tick which does something
+     */
+    protected synchronized int getTicksBeforeStep()
+    {
+        return moveTimer;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "width: " + width + ", " + "height: " + height + ", " + "lineCount: " + lineCount + ", " + "pieceCount: " + pieceCount + ", " + "score: " + score + ", " + "speed: "
+                + speed + ", " + "delay: " + delay + ", " + "moveTimer: " + moveTimer + ", " + "gameState: " + gameState + ", " + "nextPiece: " + getNextPiece() + ", "
+                + "piece: " + getPiece() + ", " + "sea: " + sea.getCells();
+    }
+
+    public synchronized void destroy()
+    {
+        stopTimer();
+    }
+
+    public synchronized void addTetrisListener(TetrisListener listener)
+    {
+        if (!listenerList.contains(listener))
+        {
+            listenerList.add(listener);
+        }
+    }
+
+    public synchronized void removeTetrisListener(TetrisListener listener)
+    {
+        if (listenerList.contains(listener))
+        {
+            listenerList.remove(listener);
+        }
+    }
+
+    public TetrisListener[] getTetrisListeners()
+    {
+        return listenerList.toArray(new TetrisListener[] {});
+    }
+
+    /**
+     * Notify listeners, events are immutable so the same event is given to every listener, called on the
+     * dispatcher thread without the engine lock
+     */
+    protected void fireStateChanged(TetrisEvent event)
+    {
+        if (!timingEnabled)
+        {
+            for (TetrisListener listener : listenerList)
+            {
+                listener.stateChanged(event);
+            }
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        for (TetrisListener listener : listenerList)
+        {
+            listener.stateChanged(event);
+        }
+
+        synchronized (dispatchTiming)
+        {
+            dispatchTiming.add(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Get timer tick length in milliseconds
+     */
+    public int getTimerTick()
+    {
+        return TIMERTICK;
+    }
+}
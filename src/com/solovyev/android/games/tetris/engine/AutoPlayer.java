@@ -0,0 +1,242 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.util.List;
+
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+import com.solovyev.games.tetris.TetrisEngine;
+import com.solovyev.games.tetris.TetrisEvent;
+import com.solovyev.games.tetris.TetrisListener;
+
+
+/**
+ * Bot playing through the engine interface
+ *
+ * For every new piece the sea is copied to row masks, a {@link PlacementSearch} picks rotation and column
+ * looking one piece ahead, and the piece is rotated, moved and dropped with the same calls the controls use.
+ * Started bots play from their own thread woken by engine events, so the search never runs under the engine
+ * lock. Headless runs call move() after every step instead.
+ */
+public class AutoPlayer implements TetrisListener
+{
+    private TetrisEngine engine;
+    private PlacementSearch placementSearch;
+    private int[] rows;
+    private int[] state = new int[4];
+    private int[] nextState = new int[4];
+    private int[] placement = new int[2];
+    private Piece playedPiece;
+    private int playedPieceCount = -1;
+    private BotThread botThread;
+
+    public AutoPlayer(TetrisEngine engine, PlacementSearch placementSearch)
+    {
+        this.engine = engine;
+        this.placementSearch = placementSearch;
+
+        rows = new int[engine.getHeight()];
+    }
+
+    public AutoPlayer(TetrisEngine engine)
+    {
+        this(engine, new PlacementSearch(engine.getWidth(), engine.getHeight()));
+    }
+
+    /**
+     * Start playing from a bot thread
+     */
+    public synchronized void start()
+    {
+        if (botThread == null)
+        {
+            botThread = new BotThread();
+            botThread.start();
+            engine.addTetrisListener(this);
+        }
+    }
+
+    public synchronized void stop()
+    {
+        if (botThread != null)
+        {
+            engine.removeTetrisListener(this);
+            botThread.quit();
+            botThread = null;
+        }
+    }
+
+    @Override
+    public void stateChanged(TetrisEvent e)
+    {
+        // Only a new piece or a resumed game give something to do
+        if (e instanceof TetrisChangeEvent)
+        {
+            TetrisChangeEvent.Kind kind = ((TetrisChangeEvent) e).getKind();
+            if ((kind != TetrisChangeEvent.Kind.NEXT_PIECE_CHANGED) && (kind != TetrisChangeEvent.Kind.GAME_STATE_CHANGED))
+            {
+                return;
+            }
+        }
+
+        BotThread thread;
+        synchronized (this)
+        {
+            thread = botThread;
+        }
+
+        if (thread != null)
+        {
+            thread.wake();
+        }
+    }
+
+    /**
+     * Place the current piece if it was not placed yet
+     *
+     * @return -- true if the piece was moved
+     */
+    public boolean move()
+    {
+        Piece piece;
+        Piece nextPiece;
+        int pieceCount;
+        if (engine instanceof TetrisSnapshotSource)
+        {
+            TetrisSnapshot snapshot = ((TetrisSnapshotSource) engine).getSnapshot();
+            if (snapshot.getGameState() != TetrisEngine.GameState.RUNNING)
+            {
+                return false;
+            }
+
+            piece = snapshot.getPiece();
+            nextPiece = snapshot.getNextPiece();
+            pieceCount = snapshot.getPieceCount();
+            System.arraycopy(snapshot.getSeaRows(), 0, rows, 0, rows.length);
+        }
+        else
+        {
+            synchronized (engine)
+            {
+                if (engine.getGameState() != TetrisEngine.GameState.RUNNING)
+                {
+                    return false;
+                }
+
+                piece = engine.getPiece();
+                nextPiece = engine.getNextPiece();
+                pieceCount = engine.getPieceCount();
+                copySea(engine.getSea());
+            }
+        }
+
+        // Pieces are immutable, the same piece object with the same piece count is the piece already played
+        if (((piece == playedPiece) && (pieceCount == playedPieceCount)) || !PieceRotations.findState(piece, state))
+        {
+            return false;
+        }
+        playedPiece = piece;
+        playedPieceCount = pieceCount;
+
+        int nextShape = PieceRotations.findState(nextPiece, nextState) ? nextState[0] : -1;
+        if (!placementSearch.find(rows, state[0], state[3], nextShape, placement))
+        {
+            return false;
+        }
+
+        int turns = (placement[0] - state[1]) & (PieceRotations.ROTATION_COUNT - 1);
+        if (turns == (PieceRotations.ROTATION_COUNT - 1))
+        {
+            engine.rotatePieceCounterclockwise();
+        }
+        else
+        {
+            for (int i = 0; i < turns; i++)
+            {
+                engine.rotatePieceClockwise();
+            }
+        }
+
+        for (int x = state[2]; x < placement[1]; x++)
+        {
+            engine.movePieceRight();
+        }
+        for (int x = state[2]; x > placement[1]; x--)
+        {
+            engine.movePieceLeft();
+        }
+
+        engine.dropPiece();
+
+        return true;
+    }
+
+    private void copySea(List<Cell> sea)
+    {
+        for (int y = 0; y < rows.length; y++)
+        {
+            rows[y] = 0;
+        }
+
+        for (int i = 0; i < sea.size(); i++)
+        {
+            Cell cell = sea.get(i);
+            rows[cell.getY()] |= 1 << cell.getX();
+        }
+    }
+
+    private class BotThread extends Thread
+    {
+        private boolean running = true;
+        private boolean woken = true;
+
+        public BotThread()
+        {
+            super("AutoPlayer");
+
+            setDaemon(true);
+        }
+
+        public synchronized void wake()
+        {
+            woken = true;
+            notify();
+        }
+
+        public synchronized void quit()
+        {
+            running = false;
+            notify();
+        }
+
+        private synchronized boolean waitForWake()
+        {
+            while (running && !woken)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    return false;
+                }
+            }
+
+            woken = false;
+
+            return running;
+        }
+
+        @Override
+        public void run()
+        {
+            while (waitForWake())
+            {
+                move();
+            }
+        }
+    }
+}
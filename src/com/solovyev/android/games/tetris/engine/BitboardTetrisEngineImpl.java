@@ -0,0 +1,283 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Bitboard engine driven by a timer
+ *
+ * In FIXED_TICK mode timerEvent() is called every tick, like in the engine library. In DEADLINE mode a scheduler
+ * thread sleeps until the next tick which does something (gravity step, new piece, free fall step) and runs the
+ * idle ticks in one go. Tick times are counted from the timer start, so late wake ups do not accumulate drift,
+ * and input first brings the engine up to the current tick, so it lands at the tick a punctual fixed rate timer
+ * would give it. The modes are not identical: when the scheduler wakes up late, all missed ticks are run in one
+ * batch before the input, while a late fixed rate timer runs them one call at a time and input may get between.
+ *
+ * Posted input goes through a lock-free {@link InputQueue} and is applied in event time order at the start of the
+ * first tick after it happened. In DEADLINE mode posting also wakes the scheduler, which catches up and applies
+ * the input right away. Posted input is traced by a {@link LatencyTracker} up to the frame showing it.
+ */
+public class BitboardTetrisEngineImpl extends AbstractBitboardTetrisEngine implements TetrisInputSink
+{
+    public enum SchedulerMode
+    {
+        FIXED_TICK, DEADLINE
+    }
+
+    private static final long NANOS_PER_MILLI = 1000000;
+    private static final int INPUT_QUEUE_CAPACITY = 64;
+
+    private SchedulerMode schedulerMode;
+    private Timer timer;
+    private InputQueue inputQueue = new InputQueue(INPUT_QUEUE_CAPACITY);
+    private LatencyTracker latencyTracker = new LatencyTracker();
+
+    // Read without the engine lock to wake the scheduler on posted input
+    private volatile SchedulerThread schedulerThread;
+
+    // Deadline mode tick accounting, tick n is due at startTime + n * tickNanos and is game tick startGameTick + n
+    private long tickNanos;
+    private long startTime;
+    private long tickCount;
+    private long startGameTick;
+
+    public BitboardTetrisEngineImpl(int width, int height)
+    {
+        this(width, height, SchedulerMode.FIXED_TICK);
+    }
+
+    public BitboardTetrisEngineImpl(int width, int height, SchedulerMode schedulerMode)
+    {
+        super(width, height);
+
+        this.schedulerMode = schedulerMode;
+
+        tickNanos = getTimerTick() * NANOS_PER_MILLI;
+    }
+
+    public SchedulerMode getSchedulerMode()
+    {
+        return schedulerMode;
+    }
+
+    public LatencyTracker getLatencyTracker()
+    {
+        return latencyTracker;
+    }
+
+    @Override
+    public boolean postInput(TetrisRecorder.Action action, long eventTime)
+    {
+        if (!inputQueue.offer(action, eventTime))
+        {
+            return false;
+        }
+
+        SchedulerThread thread = schedulerThread;
+        if (thread != null)
+        {
+            thread.reschedule();
+        }
+
+        return true;
+    }
+
+    @Override
+    protected void startTimer()
+    {
+        // Input posted while the game was not running is not taken, same as input sent then
+        inputQueue.clear();
+
+        if (schedulerMode == SchedulerMode.DEADLINE)
+        {
+            startTime = System.nanoTime();
+            tickCount = 0;
+            startGameTick = getGameTick();
+            schedulerThread = new SchedulerThread();
+            schedulerThread.start();
+            return;
+        }
+
+        timer = new Timer();
+        timer.scheduleAtFixedRate(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    timerEvent();
+                }
+            }, 0, getTimerTick());
+    }
+
+    @Override
+    protected void stopTimer()
+    {
+        if (timer != null)
+        {
+            timer.cancel();
+            timer = null;
+        }
+
+        // Not joined, the engine may be stopped from the scheduler thread itself, e.g. on game over
+        if (schedulerThread != null)
+        {
+            schedulerThread.quit();
+            schedulerThread = null;
+        }
+    }
+
+    @Override
+    protected synchronized void synchronizeTimer()
+    {
+        if (schedulerThread != null)
+        {
+            // Tick 0 is due right at the start, like the first fixed rate timer call
+            long dueTickCount = ((System.nanoTime() - startTime) / tickNanos) + 1;
+            if (dueTickCount > tickCount)
+            {
+                int ticks = (int) Math.min(dueTickCount - tickCount, Integer.MAX_VALUE);
+                tickCount = dueTickCount;
+                advance(ticks);
+            }
+        }
+
+        // Everything posted so far happened before now
+        applyQueuedInput(Long.MAX_VALUE);
+        publishChanges();
+    }
+
+    @Override
+    protected void beginTick()
+    {
+        // Catching up in DEADLINE mode runs ticks which are already past, only input from before a tick goes in it
+        if (schedulerThread != null)
+        {
+            applyQueuedInput(startTime + ((getGameTick() - startGameTick) * tickNanos));
+        }
+        else
+        {
+            applyQueuedInput(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Apply queued input which happened before a time, called with the engine lock held
+     */
+    private void applyQueuedInput(long time)
+    {
+        long eventTime;
+        while ((eventTime = inputQueue.peekTime()) < time)
+        {
+            long version = getVersion();
+            applyInput(inputQueue.take());
+
+            long appliedVersion = getVersion();
+            latencyTracker.inputApplied(eventTime, System.nanoTime(), (appliedVersion != version) ? appliedVersion : -1);
+        }
+    }
+
+    @Override
+    protected synchronized void scheduleChanged()
+    {
+        if (schedulerThread != null)
+        {
+            schedulerThread.reschedule();
+        }
+    }
+
+    /**
+     * Catch up with the current time and get time of the next tick which does something, called with the engine
+     * lock held
+     *
+     * @return -- deadline as System.nanoTime() value
+     */
+    private long getNextDeadline()
+    {
+        synchronizeTimer();
+
+        return startTime + ((tickCount + getTicksBeforeStep()) * tickNanos);
+    }
+
+    /**
+     * Sleeps until the next deadline, woken by unpark, so waking it never blocks the caller
+     */
+    private class SchedulerThread extends Thread
+    {
+        private volatile boolean running = true;
+        private volatile boolean rescheduled = false;
+
+        public SchedulerThread()
+        {
+            super("TetrisScheduler");
+
+            setDaemon(true);
+        }
+
+        public void reschedule()
+        {
+            rescheduled = true;
+            LockSupport.unpark(this);
+        }
+
+        public void quit()
+        {
+            running = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run()
+        {
+            BitboardTetrisEngineImpl engine = BitboardTetrisEngineImpl.this;
+
+            while (true)
+            {
+                long deadline;
+                long waitStart = getLockWaitStart();
+                synchronized (engine)
+                {
+                    lockAcquired(waitStart);
+                    if (!running)
+                    {
+                        return;
+                    }
+
+                    deadline = getNextDeadline();
+                }
+
+                if (!waitFor(deadline))
+                {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return -- false if the thread should quit
+         */
+        private boolean waitFor(long deadline)
+        {
+            long timeout = deadline - System.nanoTime();
+            while (running && !rescheduled && (timeout > 0))
+            {
+                // An unpark coming before the park makes it return at once, so no wake up is lost
+                LockSupport.parkNanos(timeout);
+                if (Thread.interrupted())
+                {
+                    return false;
+                }
+
+                timeout = deadline - System.nanoTime();
+            }
+
+            rescheduled = false;
+
+            return running;
+        }
+    }
+}
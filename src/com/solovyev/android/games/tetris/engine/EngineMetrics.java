@@ -0,0 +1,234 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Counters and timers of an engine
+ *
+ * The engine updates them with its lock held, so they are plain fields, an update is an increment. Readers get a
+ * copy, see {@link AbstractBitboardTetrisEngine#getMetrics()}. Times are only taken while timing is on, counters
+ * are always kept. Time spent in listeners is not here, the dispatcher thread keeps it in the engine under a
+ * monitor of its own, see {@link AbstractBitboardTetrisEngine#getDispatchTiming()}.
+ */
+public class EngineMetrics
+{
+    // Pieces are tetrominoes, no more than 4 lines go at once
+    public static final int MAX_CLEARED_LINES = 4;
+
+    private long tickCount;
+    private long gravityStepCount;
+    private long acceptedInputCount;
+    private long rejectedInputCount;
+    private long[] lineClearCounts = new long[MAX_CLEARED_LINES + 1];
+
+    private Timing tickTiming = new Timing();
+    private Timing lockWaitTiming = new Timing();
+
+    public EngineMetrics()
+    {
+    }
+
+    public EngineMetrics(EngineMetrics metrics)
+    {
+        tickCount = metrics.tickCount;
+        gravityStepCount = metrics.gravityStepCount;
+        acceptedInputCount = metrics.acceptedInputCount;
+        rejectedInputCount = metrics.rejectedInputCount;
+        System.arraycopy(metrics.lineClearCounts, 0, lineClearCounts, 0, lineClearCounts.length);
+
+        tickTiming = new Timing(metrics.tickTiming);
+        lockWaitTiming = new Timing(metrics.lockWaitTiming);
+    }
+
+    void addTicks(long ticks)
+    {
+        tickCount += ticks;
+    }
+
+    void addGravityStep()
+    {
+        gravityStepCount++;
+    }
+
+    void addInput(boolean isAccepted)
+    {
+        if (isAccepted)
+        {
+            acceptedInputCount++;
+        }
+        else
+        {
+            rejectedInputCount++;
+        }
+    }
+
+    void addLineClear(int lines)
+    {
+        lineClearCounts[Math.min(lines, MAX_CLEARED_LINES)]++;
+    }
+
+    void clear()
+    {
+        tickCount = 0;
+        gravityStepCount = 0;
+        acceptedInputCount = 0;
+        rejectedInputCount = 0;
+        for (int i = 0; i < lineClearCounts.length; i++)
+        {
+            lineClearCounts[i] = 0;
+        }
+
+        tickTiming.clear();
+        lockWaitTiming.clear();
+    }
+
+    /**
+     * Get number of ticks run, idle ticks skipped in one go included
+     */
+    public long getTickCount()
+    {
+        return tickCount;
+    }
+
+    /**
+     * Get number of times the timer moved a piece down, free fall included
+     */
+    public long getGravityStepCount()
+    {
+        return gravityStepCount;
+    }
+
+    public long getAcceptedInputCount()
+    {
+        return acceptedInputCount;
+    }
+
+    /**
+     * Get number of inputs given up because the game was not taking input, e.g. paused or over
+     */
+    public long getRejectedInputCount()
+    {
+        return rejectedInputCount;
+    }
+
+    /**
+     * @param lines -- from 1 to MAX_CLEARED_LINES
+     * @return -- number of times that many lines were cleared at once
+     */
+    public long getLineClearCount(int lines)
+    {
+        return lineClearCounts[lines];
+    }
+
+    /**
+     * Get time spent in timer ticks which do something
+     */
+    public Timing getTickTiming()
+    {
+        return tickTiming;
+    }
+
+    /**
+     * Get time waited for the engine lock by ticks and input
+     */
+    public Timing getLockWaitTiming()
+    {
+        return lockWaitTiming;
+    }
+
+    /**
+     * Format all metrics, one group per line
+     */
+    public String getReport()
+    {
+        StringBuilder res = new StringBuilder();
+        res.append("ticks: ").append(tickCount).append(", gravity steps: ").append(gravityStepCount).append('\n');
+        res.append("input: ").append(acceptedInputCount).append(" accepted, ").append(rejectedInputCount).append(" rejected\n");
+        res.append("line clears:");
+        for (int lines = 1; lines <= MAX_CLEARED_LINES; lines++)
+        {
+            res.append(' ').append(lines).append(" x ").append(lineClearCounts[lines]).append((lines < MAX_CLEARED_LINES) ? "," : "\n");
+        }
+        res.append("tick: ").append(tickTiming).append('\n');
+        res.append("lock wait: ").append(lockWaitTiming);
+
+        return res.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getReport();
+    }
+
+    /**
+     * Count, total and longest of timed calls
+     */
+    public static class Timing
+    {
+        private static final double NANOS_PER_MICRO = 1000.0;
+
+        private long count;
+        private long totalTime;
+        private long maxTime;
+
+        public Timing()
+        {
+        }
+
+        public Timing(Timing timing)
+        {
+            count = timing.count;
+            totalTime = timing.totalTime;
+            maxTime = timing.maxTime;
+        }
+
+        void add(long nanos)
+        {
+            count++;
+            totalTime += nanos;
+            maxTime = Math.max(maxTime, nanos);
+        }
+
+        void clear()
+        {
+            count = 0;
+            totalTime = 0;
+            maxTime = 0;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Get total time in nanoseconds
+         */
+        public long getTotalTime()
+        {
+            return totalTime;
+        }
+
+        /**
+         * Get longest time in nanoseconds
+         */
+        public long getMaxTime()
+        {
+            return maxTime;
+        }
+
+        /**
+         * Format count, mean, longest and total time in microseconds
+         */
+        @Override
+        public String toString()
+        {
+            double mean = (count != 0) ? ((double) totalTime / count) : 0;
+
+            return String.format("n %d, mean %.1f us, max %.1f us, total %.1f us", count, mean / NANOS_PER_MICRO, maxTime / NANOS_PER_MICRO, totalTime
+                    / NANOS_PER_MICRO);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Bitboard engine driven by a virtual clock
+ *
+ * Time only moves when step() is called, pieces come from a seeded generator, so a game is fully determined by
+ * the seed and the input sequence. Nothing here depends on Android or wall clock time, idle ticks are skipped
+ * in one go, so bots, regression tests and tuning runs go as fast as the rules can be evaluated.
+ */
+public class HeadlessTetrisEngine extends AbstractBitboardTetrisEngine
+{
+    private boolean timerRunning = false;
+    private long tick = 0;
+
+    public HeadlessTetrisEngine(int width, int height, long seed)
+    {
+        super(width, height, new PieceGenerator(seed));
+    }
+
+    public HeadlessTetrisEngine(int width, int height, long seed, SpeedCurve speedCurve)
+    {
+        super(width, height, new PieceGenerator(seed), speedCurve);
+    }
+
+    /**
+     * Move virtual clock forward, the game only advances while it is running
+     */
+    public synchronized void step(int ticks)
+    {
+        tick += ticks;
+
+        if (timerRunning)
+        {
+            advance(ticks);
+        }
+    }
+
+    /**
+     * Get number of ticks passed on the virtual clock
+     */
+    public synchronized long getTick()
+    {
+        return tick;
+    }
+
+    @Override
+    protected void startTimer()
+    {
+        timerRunning = true;
+    }
+
+    @Override
+    protected void stopTimer()
+    {
+        timerRunning = false;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Bounded lock-free input queue, many threads put, one takes
+ *
+ * Producers claim a slot with a compare-and-set on the tail and publish it by moving the slot sequence on, so
+ * offer() never blocks and never allocates, a full queue drops the input. The consumer moves published inputs to
+ * its own buffer sorted by event time, so inputs from different threads come out in time order even when they
+ * were claimed in a different one. Consumer methods must be called by one thread at a time, e.g. under the
+ * engine lock.
+ */
+public class InputQueue
+{
+    private static final TetrisRecorder.Action[] ACTIONS = TetrisRecorder.Action.values();
+
+    private int mask;
+
+    // Slot at position p is free for p when its sequence is p, holds input of p when it is p + 1
+    private AtomicLongArray sequences;
+    private long[] times;
+    private byte[] actions;
+    private AtomicLong tail = new AtomicLong();
+
+    // Consumer side: next position to take and taken inputs sorted by time
+    private long head;
+    private long[] pendingTimes;
+    private byte[] pendingActions;
+    private int pendingCount;
+
+    /**
+     * @param capacity -- number of slots, a power of two
+     */
+    public InputQueue(int capacity)
+    {
+        if ((capacity <= 0) || ((capacity & (capacity - 1)) != 0))
+        {
+            throw new IllegalArgumentException("capacity should be a power of two: " + capacity);
+        }
+
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+        {
+            sequences.set(i, i);
+        }
+        times = new long[capacity];
+        actions = new byte[capacity];
+
+        pendingTimes = new long[capacity];
+        pendingActions = new byte[capacity];
+    }
+
+    /**
+     * Put an input, may be called from any thread
+     *
+     * @param time -- event time, System.nanoTime() clock
+     * @return -- false if the queue is full and the input was dropped
+     */
+    public boolean offer(TetrisRecorder.Action action, long time)
+    {
+        while (true)
+        {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+
+            if (sequence == position)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    times[index] = time;
+                    actions[index] = (byte) action.ordinal();
+                    sequences.set(index, position + 1);
+
+                    return true;
+                }
+            }
+            else if (sequence < position)
+            {
+                // Slot still holds the input of the previous round
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Get event time of the earliest input, consumer only
+     *
+     * @return -- Long.MAX_VALUE if there is no input
+     */
+    public long peekTime()
+    {
+        collect();
+
+        return (pendingCount != 0) ? pendingTimes[0] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Take the earliest input, consumer only
+     *
+     * @return -- null if there is no input
+     */
+    public TetrisRecorder.Action take()
+    {
+        collect();
+
+        if (pendingCount == 0)
+        {
+            return null;
+        }
+
+        TetrisRecorder.Action res = ACTIONS[pendingActions[0]];
+        pendingCount--;
+        System.arraycopy(pendingTimes, 1, pendingTimes, 0, pendingCount);
+        System.arraycopy(pendingActions, 1, pendingActions, 0, pendingCount);
+
+        return res;
+    }
+
+    /**
+     * Drop all input, consumer only
+     */
+    public void clear()
+    {
+        do
+        {
+            pendingCount = 0;
+            collect();
+        }
+        while (pendingCount != 0);
+    }
+
+    /**
+     * Move published inputs to the pending buffer, inputs with equal times keep their order
+     */
+    private void collect()
+    {
+        while (pendingCount < pendingTimes.length)
+        {
+            int index = (int) head & mask;
+            if (sequences.get(index) != (head + 1))
+            {
+                return;
+            }
+
+            long time = times[index];
+            byte action = actions[index];
+            sequences.set(index, head + mask + 1);
+            head++;
+
+            int i = pendingCount;
+            while ((i > 0) && (pendingTimes[i - 1] > time))
+            {
+                pendingTimes[i] = pendingTimes[i - 1];
+                pendingActions[i] = pendingActions[i - 1];
+                i--;
+            }
+            pendingTimes[i] = time;
+            pendingActions[i] = action;
+            pendingCount++;
+        }
+    }
+}
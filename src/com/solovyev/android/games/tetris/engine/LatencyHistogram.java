@@ -0,0 +1,130 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Fixed size histogram of latencies in microseconds
+ *
+ * Buckets are log-linear: values below SUB_BUCKET_COUNT have a bucket each, above that every power of two is split
+ * into SUB_BUCKET_COUNT buckets, so a value is known to within 1/16 of it however large it is. Values above the
+ * last bucket are counted in it. Recording is a few shifts and an increment, memory does not grow with the
+ * number of values.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // Largest value with a bucket of its own, about 16.7 seconds
+    private static final int MAX_MAGNITUDE = 23;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * @param micros -- latency, negative values count as 0
+     */
+    public synchronized void record(long micros)
+    {
+        micros = Math.max(0, micros);
+
+        counts[getBucket(micros)]++;
+        count++;
+        sum += micros;
+        max = Math.max(max, micros);
+    }
+
+    public synchronized void clear()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+    public synchronized long getMax()
+    {
+        return max;
+    }
+
+    public synchronized double getMean()
+    {
+        return (count != 0) ? ((double) sum / count) : 0;
+    }
+
+    /**
+     * Get value at a percentile, the highest value of the bucket the value is in
+     *
+     * @param percentile -- from 0 to 100
+     * @return -- 0 if nothing was recorded
+     */
+    public synchronized long getPercentile(double percentile)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil((percentile / 100) * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(getBucketTop(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    private static int getBucket(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+        {
+            return (int) value;
+        }
+
+        int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        long subBucket = Math.min(value >>> shift, (SUB_BUCKET_COUNT * 2) - 1);
+
+        return ((shift + 1) * SUB_BUCKET_COUNT) + (int) (subBucket - SUB_BUCKET_COUNT);
+    }
+
+    private static long getBucketTop(int bucket)
+    {
+        if (bucket < SUB_BUCKET_COUNT)
+        {
+            return bucket;
+        }
+
+        int shift = (bucket / SUB_BUCKET_COUNT) - 1;
+        long subBucket = (bucket % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Format count, mean and percentiles in milliseconds
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("n %d, mean %.1f ms, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms", count, getMean() / 1000, getPercentile(50) / 1000.0,
+                getPercentile(95) / 1000.0, getPercentile(99) / 1000.0, max / 1000.0);
+    }
+}
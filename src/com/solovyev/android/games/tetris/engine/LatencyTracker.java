@@ -0,0 +1,105 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Traces input from its event time to the engine applying it and to the first frame showing it
+ *
+ * The engine reports every applied input with the snapshot version which first has its effect, views report the
+ * snapshot version of every frame they draw. An input is shown by the first frame of that version or later. Input
+ * which changed nothing is only counted up to the engine. Times are System.nanoTime() values, input which waits
+ * for a frame is kept in a fixed ring, the oldest input is given up when it is full, e.g. while nothing is drawn.
+ */
+public class LatencyTracker
+{
+    private static final int MAX_PENDING = 64;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private LatencyHistogram appliedHistogram = new LatencyHistogram();
+    private LatencyHistogram shownHistogram = new LatencyHistogram();
+
+    // Applied input waiting for a frame, oldest first
+    private long[] pendingTimes = new long[MAX_PENDING];
+    private long[] pendingVersions = new long[MAX_PENDING];
+    private int pendingStart;
+    private int pendingCount;
+    private long droppedCount;
+
+    /**
+     * Called by the engine when an input is applied
+     *
+     * @param eventTime -- time the input happened at
+     * @param appliedTime -- time the input was applied at
+     * @param version -- version of the snapshot showing the input, -1 if the input changed nothing
+     */
+    public synchronized void inputApplied(long eventTime, long appliedTime, long version)
+    {
+        appliedHistogram.record((appliedTime - eventTime) / NANOS_PER_MICRO);
+
+        if (version < 0)
+        {
+            return;
+        }
+
+        if (pendingCount == MAX_PENDING)
+        {
+            pendingStart = (pendingStart + 1) % MAX_PENDING;
+            pendingCount--;
+            droppedCount++;
+        }
+
+        int index = (pendingStart + pendingCount) % MAX_PENDING;
+        pendingTimes[index] = eventTime;
+        pendingVersions[index] = version;
+        pendingCount++;
+    }
+
+    /**
+     * Called by a view when a frame is drawn
+     *
+     * @param version -- version of the snapshot drawn
+     * @param shownTime -- time the frame was done at
+     */
+    public synchronized void frameShown(long version, long shownTime)
+    {
+        while ((pendingCount != 0) && (pendingVersions[pendingStart] <= version))
+        {
+            shownHistogram.record((shownTime - pendingTimes[pendingStart]) / NANOS_PER_MICRO);
+            pendingStart = (pendingStart + 1) % MAX_PENDING;
+            pendingCount--;
+        }
+    }
+
+    /**
+     * Get latencies from input to the engine applying it
+     */
+    public LatencyHistogram getAppliedHistogram()
+    {
+        return appliedHistogram;
+    }
+
+    /**
+     * Get latencies from input to the first frame showing it
+     */
+    public LatencyHistogram getShownHistogram()
+    {
+        return shownHistogram;
+    }
+
+    public synchronized void clear()
+    {
+        appliedHistogram.clear();
+        shownHistogram.clear();
+        pendingCount = 0;
+        droppedCount = 0;
+    }
+
+    /**
+     * Format both histograms, one per line
+     */
+    public synchronized String getReport()
+    {
+        return "input to engine: " + appliedHistogram + "\ninput to frame: " + shownHistogram + "\nnever shown: " + droppedCount;
+    }
+}
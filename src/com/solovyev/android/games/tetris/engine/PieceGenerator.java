@@ -0,0 +1,73 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Seedable random source for pieces
+ *
+ * Same linear congruential generator as java.util.Random, so a seed gives the same pieces as Random with that
+ * seed, but the state is accessible and can be saved and restored.
+ */
+public class PieceGenerator
+{
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+
+    private long state;
+
+    public PieceGenerator(long seed)
+    {
+        setSeed(seed);
+    }
+
+    public void setSeed(long seed)
+    {
+        state = (seed ^ MULTIPLIER) & MASK;
+    }
+
+    public long getState()
+    {
+        return state;
+    }
+
+    public void setState(long state)
+    {
+        this.state = state & MASK;
+    }
+
+    /**
+     * Get uniformly distributed value between 0 (inclusive) and bound (exclusive)
+     */
+    public int nextInt(int bound)
+    {
+        if (bound <= 0)
+        {
+            throw new IllegalArgumentException("bound should be positive: " + bound);
+        }
+
+        if ((bound & -bound) == bound)
+        {
+            return (int) ((bound * (long) next(31)) >> 31);
+        }
+
+        int bits;
+        int res;
+        do
+        {
+            bits = next(31);
+            res = bits % bound;
+        }
+        while (((bits - res) + (bound - 1)) < 0);
+
+        return res;
+    }
+
+    private int next(int bits)
+    {
+        state = ((state * MULTIPLIER) + ADDEND) & MASK;
+
+        return (int) (state >>> (48 - bits));
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.util.List;
+
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+
+
+/**
+ * Rotation states of the standard pieces, made once
+ *
+ * Every shape has four rotation states computed with the same math as in the engine library, state r + 1 is
+ * state r turned clockwise. A state keeps cell coordinates relative to the piece position, cell bounds and the
+ * same cells packed as row masks, so moving or rotating a piece is an index change and a placement test is a
+ * mask test per row.
+ */
+public class PieceRotations
+{
+    public static final int ROTATION_COUNT = 4;
+
+    private static final Piece[] SHAPES = new Piece[] { Piece.I, Piece.J, Piece.L, Piece.O, Piece.S, Piece.T, Piece.Z };
+
+    // Indexed by [shape][rotation][cell], coordinates are relative to the piece position
+    private static final int[][][] CELL_X = new int[SHAPES.length][ROTATION_COUNT][];
+    private static final int[][][] CELL_Y = new int[SHAPES.length][ROTATION_COUNT][];
+
+    // Indexed by [shape][rotation], right and bottom are exclusive
+    private static final int[][] LEFT = new int[SHAPES.length][ROTATION_COUNT];
+    private static final int[][] TOP = new int[SHAPES.length][ROTATION_COUNT];
+    private static final int[][] RIGHT = new int[SHAPES.length][ROTATION_COUNT];
+    private static final int[][] BOTTOM = new int[SHAPES.length][ROTATION_COUNT];
+
+    // Indexed by [shape][rotation][row - top], bit 0 is the left column
+    private static final int[][][] ROW_MASKS = new int[SHAPES.length][ROTATION_COUNT][];
+
+    private static final Cell.Color[] COLORS = new Cell.Color[SHAPES.length];
+
+    static
+    {
+        for (int shape = 0; shape < SHAPES.length; shape++)
+        {
+            Piece piece = SHAPES[shape];
+            List<Cell> cells = piece.getCells();
+            COLORS[shape] = cells.get(0).getColor();
+
+            int[] x = new int[cells.size()];
+            int[] y = new int[cells.size()];
+            for (int i = 0; i < cells.size(); i++)
+            {
+                x[i] = cells.get(i).getX();
+                y[i] = cells.get(i).getY();
+            }
+
+            for (int rotation = 0; rotation < ROTATION_COUNT; rotation++)
+            {
+                initRotation(shape, rotation, x, y);
+
+                // Turn clockwise for the next state
+                for (int i = 0; i < x.length; i++)
+                {
+                    int rotatedX = (int) ((piece.getCenterY() - y[i]) + piece.getCenterX());
+                    int rotatedY = (int) ((x[i] - piece.getCenterX()) + piece.getCenterY());
+                    x[i] = rotatedX;
+                    y[i] = rotatedY;
+                }
+            }
+        }
+    }
+
+    private PieceRotations()
+    {
+    }
+
+    private static void initRotation(int shape, int rotation, int[] x, int[] y)
+    {
+        CELL_X[shape][rotation] = x.clone();
+        CELL_Y[shape][rotation] = y.clone();
+
+        int left = Integer.MAX_VALUE;
+        int top = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int bottom = Integer.MIN_VALUE;
+        for (int i = 0; i < x.length; i++)
+        {
+            left = Math.min(left, x[i]);
+            top = Math.min(top, y[i]);
+            right = Math.max(right, x[i] + 1);
+            bottom = Math.max(bottom, y[i] + 1);
+        }
+
+        LEFT[shape][rotation] = left;
+        TOP[shape][rotation] = top;
+        RIGHT[shape][rotation] = right;
+        BOTTOM[shape][rotation] = bottom;
+
+        int[] masks = new int[bottom - top];
+        for (int i = 0; i < x.length; i++)
+        {
+            masks[y[i] - top] |= 1 << (x[i] - left);
+        }
+        ROW_MASKS[shape][rotation] = masks;
+    }
+
+    public static int getShapeCount()
+    {
+        return SHAPES.length;
+    }
+
+    /**
+     * Get the library piece the shape was made from, it is in rotation state 0 at position 0, 0
+     */
+    public static Piece getShape(int shape)
+    {
+        return SHAPES[shape];
+    }
+
+    public static int rotateClockwise(int rotation)
+    {
+        return (rotation + 1) & (ROTATION_COUNT - 1);
+    }
+
+    public static int rotateCounterclockwise(int rotation)
+    {
+        return (rotation + ROTATION_COUNT - 1) & (ROTATION_COUNT - 1);
+    }
+
+    public static int getCellCount(int shape)
+    {
+        return CELL_X[shape][0].length;
+    }
+
+    public static int getCellX(int shape, int rotation, int cell)
+    {
+        return CELL_X[shape][rotation][cell];
+    }
+
+    public static int getCellY(int shape, int rotation, int cell)
+    {
+        return CELL_Y[shape][rotation][cell];
+    }
+
+    public static int getLeft(int shape, int rotation)
+    {
+        return LEFT[shape][rotation];
+    }
+
+    public static int getTop(int shape, int rotation)
+    {
+        return TOP[shape][rotation];
+    }
+
+    public static int getRight(int shape, int rotation)
+    {
+        return RIGHT[shape][rotation];
+    }
+
+    public static int getBottom(int shape, int rotation)
+    {
+        return BOTTOM[shape][rotation];
+    }
+
+    /**
+     * Get row mask, bit 0 is the left column of the state bounds
+     *
+     * @param row -- row counted from the top of the state bounds
+     */
+    public static int getRowMask(int shape, int rotation, int row)
+    {
+        return ROW_MASKS[shape][rotation][row];
+    }
+
+    public static Cell.Color getColor(int shape)
+    {
+        return COLORS[shape];
+    }
+
+    /**
+     * Find state of a library piece, e.g. one got through the engine interface
+     *
+     * Shapes have distinct colors and keep their center relative to the position through rotations, so the
+     * shape and the position come from those and only the rotation is searched.
+     *
+     * @param res -- array to put shape, rotation, x and y to
+     * @return -- false if the piece is none of the shapes
+     */
+    public static boolean findState(Piece piece, int[] res)
+    {
+        List<Cell> cells = piece.getCells();
+        if (cells.isEmpty())
+        {
+            return false;
+        }
+
+        for (int shape = 0; shape < SHAPES.length; shape++)
+        {
+            if ((COLORS[shape] != cells.get(0).getColor()) || (cells.size() != getCellCount(shape)))
+            {
+                continue;
+            }
+
+            int x = (int) Math.round(piece.getCenterX() - SHAPES[shape].getCenterX());
+            int y = (int) Math.round(piece.getCenterY() - SHAPES[shape].getCenterY());
+            for (int rotation = 0; rotation < ROTATION_COUNT; rotation++)
+            {
+                if (isMatching(cells, shape, rotation, x, y))
+                {
+                    res[0] = shape;
+                    res[1] = rotation;
+                    res[2] = x;
+                    res[3] = y;
+
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isMatching(List<Cell> cells, int shape, int rotation, int x, int y)
+    {
+        for (int i = 0; i < cells.size(); i++)
+        {
+            Cell cell = cells.get(i);
+            int row = cell.getY() - y - TOP[shape][rotation];
+            int column = cell.getX() - x - LEFT[shape][rotation];
+            if ((row < 0) || (row >= ROW_MASKS[shape][rotation].length) || (column < 0) || (column >= Integer.SIZE)
+                    || ((ROW_MASKS[shape][rotation][row] & (1 << column)) == 0))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Make a library piece for the state
+     */
+    public static Piece makePiece(int shape, int rotation, int x, int y)
+    {
+        int[] cellX = CELL_X[shape][rotation];
+        int[] cellY = CELL_Y[shape][rotation];
+
+        int[][] coordinates = new int[cellX.length][];
+        for (int i = 0; i < cellX.length; i++)
+        {
+            coordinates[i] = new int[] { cellX[i] + x, cellY[i] + y };
+        }
+
+        Piece piece = SHAPES[shape];
+
+        return new Piece(coordinates, getColor(shape), piece.getCenterX() + x, piece.getCenterY() + y);
+    }
+}
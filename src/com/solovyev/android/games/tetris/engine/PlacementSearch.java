@@ -0,0 +1,307 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Finds where to drop a piece
+ *
+ * Every rotation and column of the piece is dropped on a copy of the sea row masks, followed by every placement
+ * of the next piece, and the best resulting board by a weighted sum of aggregate height, cleared lines, holes and
+ * bumpiness wins. With an executor the placements of the piece are split into one batch per worker.
+ */
+public class PlacementSearch
+{
+    private static final double HEIGHT_WEIGHT = -0.510066;
+    private static final double LINES_WEIGHT = 0.760666;
+    private static final double HOLES_WEIGHT = -0.35663;
+    private static final double BUMPINESS_WEIGHT = -0.184483;
+
+    private int width;
+    private int height;
+    private int fullRowMask;
+    private ExecutorService executor;
+    private int batchCount;
+
+    /**
+     * @param executor -- executor to run batches on, null to search on the calling thread
+     * @param batchCount -- number of batches, usually the number of executor threads
+     */
+    public PlacementSearch(int width, int height, ExecutorService executor, int batchCount)
+    {
+        this.width = width;
+        this.height = height;
+        this.executor = executor;
+        this.batchCount = (executor != null) ? Math.max(1, batchCount) : 1;
+
+        fullRowMask = (1 << width) - 1;
+    }
+
+    public PlacementSearch(int width, int height)
+    {
+        this(width, height, null, 1);
+    }
+
+    /**
+     * Find the best placement
+     *
+     * @param rows -- sea row masks, not modified
+     * @param shape -- piece shape
+     * @param y -- piece row to drop from
+     * @param nextShape -- next piece shape, -1 to look at the piece only
+     * @param res -- array to put rotation and column to
+     * @return -- false if the piece does not fit anywhere
+     */
+    public boolean find(final int[] rows, final int shape, final int y, final int nextShape, int[] res)
+    {
+        double bestScore = Double.NEGATIVE_INFINITY;
+
+        if (executor == null)
+        {
+            return new Batch(rows, shape, y, nextShape, 0).call().getBest(res);
+        }
+
+        List<Future<Batch>> futures = new ArrayList<Future<Batch>>(batchCount);
+        for (int i = 0; i < batchCount; i++)
+        {
+            futures.add(executor.submit(new Batch(rows, shape, y, nextShape, i)));
+        }
+
+        boolean found = false;
+        int[] batchRes = new int[2];
+        for (Future<Batch> future : futures)
+        {
+            Batch batch;
+            try
+            {
+                batch = future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException("placement search failed: " + e.getCause());
+            }
+
+            if (batch.getBest(batchRes) && (batch.bestScore > bestScore))
+            {
+                bestScore = batch.bestScore;
+                res[0] = batchRes[0];
+                res[1] = batchRes[1];
+                found = true;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Placements of the piece with index modulo batch count equal to the batch index, every batch has its own
+     * scratch boards
+     */
+    private class Batch implements Callable<Batch>
+    {
+        private int[] rows;
+        private int shape;
+        private int y;
+        private int nextShape;
+        private int index;
+        private int[] board = new int[height];
+        private int[] nextBoard = new int[height];
+        private int[] columnHeights = new int[width];
+
+        private double bestScore = Double.NEGATIVE_INFINITY;
+        private int bestRotation = -1;
+        private int bestX;
+
+        public Batch(int[] rows, int shape, int y, int nextShape, int index)
+        {
+            this.rows = rows;
+            this.shape = shape;
+            this.y = y;
+            this.nextShape = nextShape;
+            this.index = index;
+        }
+
+        public boolean getBest(int[] res)
+        {
+            res[0] = bestRotation;
+            res[1] = bestX;
+
+            return bestRotation != -1;
+        }
+
+        @Override
+        public Batch call()
+        {
+            int n = 0;
+            for (int rotation = 0; rotation < PieceRotations.ROTATION_COUNT; rotation++)
+            {
+                int minX = -PieceRotations.getLeft(shape, rotation);
+                int maxX = width - PieceRotations.getRight(shape, rotation);
+                for (int x = minX; x <= maxX; x++)
+                {
+                    if ((n++ % batchCount) != index)
+                    {
+                        continue;
+                    }
+
+                    System.arraycopy(rows, 0, board, 0, height);
+                    int lines = drop(board, shape, rotation, x, y);
+                    if (lines < 0)
+                    {
+                        continue;
+                    }
+
+                    double score = (nextShape >= 0) ? getBestNextScore(lines) : evaluate(board, lines);
+                    if (score > bestScore)
+                    {
+                        bestScore = score;
+                        bestRotation = rotation;
+                        bestX = x;
+                    }
+                }
+            }
+
+            return this;
+        }
+
+        private double getBestNextScore(int lines)
+        {
+            double res = Double.NEGATIVE_INFINITY;
+            for (int rotation = 0; rotation < PieceRotations.ROTATION_COUNT; rotation++)
+            {
+                int minX = -PieceRotations.getLeft(nextShape, rotation);
+                int maxX = width - PieceRotations.getRight(nextShape, rotation);
+                for (int x = minX; x <= maxX; x++)
+                {
+                    System.arraycopy(board, 0, nextBoard, 0, height);
+                    int nextLines = drop(nextBoard, nextShape, rotation, x, 0);
+                    if (nextLines >= 0)
+                    {
+                        res = Math.max(res, evaluate(nextBoard, lines + nextLines));
+                    }
+                }
+            }
+
+            // Next piece does not fit anywhere, the game would be over
+            return (res == Double.NEGATIVE_INFINITY) ? (evaluate(board, lines) - 1000) : res;
+        }
+
+        private double evaluate(int[] board, int lines)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                columnHeights[x] = 0;
+            }
+
+            int holes = 0;
+            int covered = 0;
+            for (int row = 0; row < height; row++)
+            {
+                int mask = board[row];
+                holes += Integer.bitCount(covered & ~mask);
+                int newColumns = mask & ~covered;
+                while (newColumns != 0)
+                {
+                    int x = Integer.numberOfTrailingZeros(newColumns);
+                    columnHeights[x] = height - row;
+                    newColumns &= newColumns - 1;
+                }
+                covered |= mask;
+            }
+
+            int aggregateHeight = 0;
+            int bumpiness = 0;
+            for (int x = 0; x < width; x++)
+            {
+                aggregateHeight += columnHeights[x];
+                if (x > 0)
+                {
+                    bumpiness += Math.abs(columnHeights[x] - columnHeights[x - 1]);
+                }
+            }
+
+            return (HEIGHT_WEIGHT * aggregateHeight) + (LINES_WEIGHT * lines) + (HOLES_WEIGHT * holes) + (BUMPINESS_WEIGHT * bumpiness);
+        }
+    }
+
+    /**
+     * Drop a piece straight down from a row, put it on the board and remove full rows
+     *
+     * @return -- number of rows removed, -1 if the piece does not fit at the starting row
+     */
+    private int drop(int[] board, int shape, int rotation, int x, int y)
+    {
+        if (!isPlaceable(board, shape, rotation, x, y))
+        {
+            return -1;
+        }
+
+        while (isPlaceable(board, shape, rotation, x, y + 1))
+        {
+            y++;
+        }
+
+        int left = x + PieceRotations.getLeft(shape, rotation);
+        int top = y + PieceRotations.getTop(shape, rotation);
+        int bottom = y + PieceRotations.getBottom(shape, rotation);
+        for (int row = top; row < bottom; row++)
+        {
+            board[row] |= PieceRotations.getRowMask(shape, rotation, row - top) << left;
+        }
+
+        // Rows are moved down over the full ones, same as the sea does
+        int lines = 0;
+        for (int row = bottom - 1; row >= 0; row--)
+        {
+            if (board[row] == fullRowMask)
+            {
+                lines++;
+            }
+            else if (lines != 0)
+            {
+                board[row + lines] = board[row];
+            }
+        }
+        for (int row = 0; row < lines; row++)
+        {
+            board[row] = 0;
+        }
+
+        return lines;
+    }
+
+    private boolean isPlaceable(int[] board, int shape, int rotation, int x, int y)
+    {
+        int left = x + PieceRotations.getLeft(shape, rotation);
+        int top = y + PieceRotations.getTop(shape, rotation);
+        int bottom = y + PieceRotations.getBottom(shape, rotation);
+
+        if ((left < 0) || (top < 0) || ((x + PieceRotations.getRight(shape, rotation)) > width) || (bottom > height))
+        {
+            return false;
+        }
+
+        for (int row = top; row < bottom; row++)
+        {
+            if ((board[row] & (PieceRotations.getRowMask(shape, rotation, row - top) << left)) != 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
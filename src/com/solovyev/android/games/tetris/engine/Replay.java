@@ -0,0 +1,409 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Recorded game
+ *
+ * Format: magic, then varints of version, keyframe interval, glass width and height, piece generator state and
+ * first piece shape, then one varint per input: ticks since the previous input shifted left by ACTION_BITS with
+ * the action ordinal in the low bits. Keyframes go the same way with the KEYFRAME code, followed by the engine
+ * state length and the state. The last varint has the END code as action and the tick the game ended at. A log
+ * cut short, e.g. when the process was killed, is read up to the last whole record.
+ *
+ * The engine is deterministic given the start state and the input ticks, so playing the inputs back through a
+ * {@link HeadlessTetrisEngine} gives the same game. Seeking starts from the closest keyframe before the target
+ * tick, so it costs at most one keyframe interval of ticks wherever in the game it goes.
+ */
+public class Replay
+{
+    public static final String FILE_SUFFIX = ".replay";
+
+    static final byte[] MAGIC = { 'T', 'R', 'P', 'L' };
+    static final int VERSION = 1;
+    static final int ACTION_BITS = 3;
+    static final int END = (1 << ACTION_BITS) - 1;
+    static final int KEYFRAME = END - 1;
+
+    private static final TetrisRecorder.Action[] ACTIONS = TetrisRecorder.Action.values();
+
+    private int width;
+    private int height;
+    private long generatorState;
+    private int nextPieceShape;
+    private int inputCount;
+    private long[] ticks = new long[64];
+    private byte[] actions = new byte[64];
+    private long endTick = -1;
+    private int keyframeInterval;
+
+    // Keyframe tick, number of inputs before it and engine state
+    private int keyframeCount;
+    private long[] keyframeTicks = new long[16];
+    private int[] keyframeInputs = new int[16];
+    private byte[][] keyframeStates = new byte[16][];
+
+    public Replay(InputStream in) throws IOException
+    {
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (in.read() != MAGIC[i])
+            {
+                throw new IOException("not a replay");
+            }
+        }
+
+        int version = (int) readVarint(in);
+        if (version != VERSION)
+        {
+            throw new IOException("unsupported replay version: " + version);
+        }
+
+        keyframeInterval = (int) readVarint(in);
+        width = (int) readVarint(in);
+        height = (int) readVarint(in);
+        generatorState = readVarint(in);
+        nextPieceShape = (int) readVarint(in);
+
+        readInput(in);
+    }
+
+    public static Replay read(File file) throws IOException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            return new Replay(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void readInput(InputStream in) throws IOException
+    {
+        long tick = 0;
+        while (true)
+        {
+            long value;
+            try
+            {
+                value = readVarint(in);
+            }
+            catch (EOFException e)
+            {
+                return;
+            }
+
+            tick += value >>> ACTION_BITS;
+            int action = (int) (value & END);
+            if (action == END)
+            {
+                endTick = tick;
+                return;
+            }
+            if (action == KEYFRAME)
+            {
+                byte[] state;
+                try
+                {
+                    state = new byte[(int) readVarint(in)];
+                    readFully(in, state);
+                }
+                catch (EOFException e)
+                {
+                    return;
+                }
+
+                addKeyframe(tick, state);
+                continue;
+            }
+            if (action >= ACTIONS.length)
+            {
+                throw new IOException("unknown replay action: " + action);
+            }
+
+            if (inputCount == ticks.length)
+            {
+                long[] newTicks = new long[inputCount * 2];
+                System.arraycopy(ticks, 0, newTicks, 0, inputCount);
+                ticks = newTicks;
+
+                byte[] newActions = new byte[inputCount * 2];
+                System.arraycopy(actions, 0, newActions, 0, inputCount);
+                actions = newActions;
+            }
+            ticks[inputCount] = tick;
+            actions[inputCount] = (byte) action;
+            inputCount++;
+        }
+    }
+
+    private void addKeyframe(long tick, byte[] state)
+    {
+        if (keyframeCount == keyframeTicks.length)
+        {
+            long[] newTicks = new long[keyframeCount * 2];
+            System.arraycopy(keyframeTicks, 0, newTicks, 0, keyframeCount);
+            keyframeTicks = newTicks;
+
+            int[] newInputs = new int[keyframeCount * 2];
+            System.arraycopy(keyframeInputs, 0, newInputs, 0, keyframeCount);
+            keyframeInputs = newInputs;
+
+            byte[][] newStates = new byte[keyframeCount * 2][];
+            System.arraycopy(keyframeStates, 0, newStates, 0, keyframeCount);
+            keyframeStates = newStates;
+        }
+
+        keyframeTicks[keyframeCount] = tick;
+        keyframeInputs[keyframeCount] = inputCount;
+        keyframeStates[keyframeCount] = state;
+        keyframeCount++;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException
+    {
+        int n = 0;
+        while (n < buffer.length)
+        {
+            int count = in.read(buffer, n, buffer.length - n);
+            if (count == -1)
+            {
+                throw new EOFException();
+            }
+            n += count;
+        }
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getInputCount()
+    {
+        return inputCount;
+    }
+
+    public long getInputTick(int index)
+    {
+        return ticks[index];
+    }
+
+    public TetrisRecorder.Action getInputAction(int index)
+    {
+        return ACTIONS[actions[index]];
+    }
+
+    /**
+     * @return -- tick the game ended at, -1 if the log was cut short
+     */
+    public long getEndTick()
+    {
+        return endTick;
+    }
+
+    public int getKeyframeCount()
+    {
+        return keyframeCount;
+    }
+
+    /**
+     * Get ticks between keyframes the replay was written with
+     */
+    public int getKeyframeInterval()
+    {
+        return keyframeInterval;
+    }
+
+    /**
+     * Get length of the recorded part of the game in ticks
+     */
+    public long getLength()
+    {
+        if (endTick >= 0)
+        {
+            return endTick;
+        }
+
+        long res = (inputCount != 0) ? ticks[inputCount - 1] : 0;
+        if (keyframeCount != 0)
+        {
+            res = Math.max(res, keyframeTicks[keyframeCount - 1]);
+        }
+
+        return res;
+    }
+
+    /**
+     * Make an engine set up to start the recorded game
+     */
+    public HeadlessTetrisEngine createEngine()
+    {
+        HeadlessTetrisEngine res = new HeadlessTetrisEngine(width, height, 0);
+        res.setStartState(generatorState, nextPieceShape);
+
+        return res;
+    }
+
+    /**
+     * Play the whole game on an engine made by createEngine()
+     */
+    public void play(HeadlessTetrisEngine engine)
+    {
+        engine.start();
+        playTo(engine, 0, getLength());
+    }
+
+    /**
+     * Play input up to and including a tick
+     *
+     * @param engine -- engine playing this replay
+     * @param nextInput -- index of the first input not played yet
+     * @param tick -- tick to stop at
+     * @return -- index of the first input not played
+     */
+    public int playTo(HeadlessTetrisEngine engine, int nextInput, long tick)
+    {
+        int i = nextInput;
+        while ((i < inputCount) && (ticks[i] <= tick))
+        {
+            stepTo(engine, ticks[i]);
+            apply(engine, ACTIONS[actions[i]]);
+            i++;
+        }
+
+        stepTo(engine, tick);
+
+        return i;
+    }
+
+    /**
+     * Bring an engine playing this replay to a tick, from the closest keyframe or from the start
+     *
+     * @return -- index of the first input not played
+     */
+    public int seek(HeadlessTetrisEngine engine, long tick)
+    {
+        // Last keyframe at or before the tick
+        int low = 0;
+        int high = keyframeCount;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (keyframeTicks[middle] <= tick)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        int nextInput;
+        if (low == 0)
+        {
+            engine.stop();
+            engine.setStartState(generatorState, nextPieceShape);
+            engine.start();
+            nextInput = 0;
+        }
+        else
+        {
+            engine.restoreState(keyframeStates[low - 1]);
+            nextInput = keyframeInputs[low - 1];
+        }
+
+        return playTo(engine, nextInput, tick);
+    }
+
+    static void stepTo(HeadlessTetrisEngine engine, long tick)
+    {
+        long ticks = tick - engine.getGameTick();
+        while (ticks > 0)
+        {
+            int n = (int) Math.min(ticks, Integer.MAX_VALUE);
+            engine.step(n);
+            ticks -= n;
+        }
+    }
+
+    static void apply(AbstractBitboardTetrisEngine engine, TetrisRecorder.Action action)
+    {
+        switch (action)
+        {
+        case MOVE_LEFT:
+            engine.movePieceLeft();
+            break;
+        case MOVE_RIGHT:
+            engine.movePieceRight();
+            break;
+        case ROTATE_CLOCKWISE:
+            engine.rotatePieceClockwise();
+            break;
+        case ROTATE_COUNTERCLOCKWISE:
+            engine.rotatePieceCounterclockwise();
+            break;
+        case DROP:
+            engine.dropPiece();
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Put unsigned LEB128 varint
+     *
+     * @return -- position after the varint
+     */
+    static int putVarint(byte[] buffer, int position, long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+
+        return position;
+    }
+
+    static long readVarint(InputStream in) throws IOException
+    {
+        long res = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            int b = in.read();
+            if (b == -1)
+            {
+                throw new EOFException();
+            }
+
+            res |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return res;
+            }
+        }
+
+        throw new IOException("malformed varint");
+    }
+}
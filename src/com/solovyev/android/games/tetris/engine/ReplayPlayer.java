@@ -0,0 +1,179 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Plays a {@link Replay} on a headless engine in real time or faster
+ *
+ * A player thread moves the game forward by speed ticks every timer tick. Seeking forward within a keyframe
+ * interval plays on from the current position, other seeks start from the closest keyframe, so a seek costs at
+ * most one keyframe interval of ticks. Views show the game by listening to getEngine() as to any other engine.
+ */
+public class ReplayPlayer
+{
+    public static final int MAX_SPEED = 64;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private Replay replay;
+    private HeadlessTetrisEngine engine;
+    private long tick;
+    private int nextInput;
+    private int speed = 1;
+    private boolean paused = false;
+    private PlayerThread playerThread;
+
+    public ReplayPlayer(Replay replay)
+    {
+        this.replay = replay;
+
+        engine = replay.createEngine();
+        engine.start();
+        nextInput = replay.playTo(engine, 0, 0);
+    }
+
+    public HeadlessTetrisEngine getEngine()
+    {
+        return engine;
+    }
+
+    public synchronized long getTick()
+    {
+        return tick;
+    }
+
+    public long getLength()
+    {
+        return replay.getLength();
+    }
+
+    public synchronized int getSpeed()
+    {
+        return speed;
+    }
+
+    /**
+     * @param speed -- game ticks per timer tick, from 1 to MAX_SPEED
+     */
+    public synchronized void setSpeed(int speed)
+    {
+        this.speed = Math.max(1, Math.min(speed, MAX_SPEED));
+    }
+
+    public synchronized boolean isPaused()
+    {
+        return paused;
+    }
+
+    public synchronized void setPaused(boolean paused)
+    {
+        this.paused = paused;
+    }
+
+    /**
+     * Go to a tick, clamped to the recorded part of the game
+     */
+    public synchronized void seek(long tick)
+    {
+        tick = Math.max(0, Math.min(tick, getLength()));
+
+        // Playing on is cheaper than going back to a keyframe as long as it is within one keyframe interval
+        long interval = (replay.getKeyframeCount() != 0) ? replay.getKeyframeInterval() : Long.MAX_VALUE;
+        if ((tick >= this.tick) && ((tick - this.tick) <= interval))
+        {
+            nextInput = replay.playTo(engine, nextInput, tick);
+        }
+        else
+        {
+            nextInput = replay.seek(engine, tick);
+        }
+
+        this.tick = tick;
+    }
+
+    public synchronized void start()
+    {
+        if (playerThread == null)
+        {
+            playerThread = new PlayerThread();
+            playerThread.start();
+        }
+    }
+
+    public synchronized void stop()
+    {
+        if (playerThread != null)
+        {
+            playerThread.quit();
+            playerThread = null;
+        }
+    }
+
+    private synchronized void step()
+    {
+        if (!paused && (tick < getLength()))
+        {
+            seek(tick + speed);
+        }
+    }
+
+    private class PlayerThread extends Thread
+    {
+        private boolean running = true;
+
+        public PlayerThread()
+        {
+            super("ReplayPlayer");
+
+            setDaemon(true);
+        }
+
+        public synchronized void quit()
+        {
+            running = false;
+            notify();
+        }
+
+        @Override
+        public void run()
+        {
+            long tickNanos = engine.getTimerTick() * NANOS_PER_MILLI;
+            long deadline = System.nanoTime();
+
+            while (true)
+            {
+                deadline += tickNanos;
+                if (!waitFor(deadline))
+                {
+                    return;
+                }
+
+                step();
+            }
+        }
+
+        /**
+         * @return -- false if the thread should quit
+         */
+        private synchronized boolean waitFor(long deadline)
+        {
+            long timeout = deadline - System.nanoTime();
+            while (running && (timeout > 0))
+            {
+                try
+                {
+                    wait(timeout / NANOS_PER_MILLI, (int) (timeout % NANOS_PER_MILLI));
+                }
+                catch (InterruptedException e)
+                {
+                    return false;
+                }
+
+                timeout = deadline - System.nanoTime();
+            }
+
+            return running;
+        }
+    }
+}
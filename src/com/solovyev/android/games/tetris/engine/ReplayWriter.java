@@ -0,0 +1,312 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Records every game into its own {@link Replay} file in a directory
+ *
+ * Input is encoded into a memory buffer under the engine lock, which costs a few stores per input. Full buffers
+ * and the end of the game are handed over to a writer thread which appends them to the file. A keyframe of the
+ * full engine state, a couple hundred bytes, is put every keyframe interval ticks, so seeking never has to play
+ * more than that many ticks. Only the last MAX_REPLAY_COUNT games are kept, older files are deleted when a game
+ * starts.
+ */
+public class ReplayWriter implements TetrisRecorder
+{
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 500;
+    public static final int MAX_REPLAY_COUNT = 5;
+
+    private static final int FLUSH_SIZE = 1024;
+
+    // Longest varint is 10 bytes, header fits in 64
+    private static final int MAX_RECORD_SIZE = 64;
+
+    private static final Logger logger = Logger.getLogger(ReplayWriter.class.getName());
+
+    private File directory;
+    private File file;
+    private byte[] buffer = new byte[FLUSH_SIZE + MAX_RECORD_SIZE];
+    private int length;
+    private long lastTick;
+    private int keyframeInterval;
+    private long nextKeyframeTick;
+
+    private ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread res = new Thread(runnable, "ReplayWriter");
+                res.setDaemon(true);
+
+                return res;
+            }
+        });
+
+    public ReplayWriter(File directory)
+    {
+        this(directory, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * @param keyframeInterval -- ticks between keyframes
+     */
+    public ReplayWriter(File directory, int keyframeInterval)
+    {
+        if (keyframeInterval <= 0)
+        {
+            throw new IllegalArgumentException("keyframe interval should be positive: " + keyframeInterval);
+        }
+
+        this.directory = directory;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Get file of the game being recorded or recorded last
+     */
+    public synchronized File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Read the game being recorded or recorded last, waits for pending writes
+     *
+     * @return -- replay or null if no game was recorded
+     */
+    public Replay getReplay() throws IOException
+    {
+        Future<Replay> future;
+        synchronized (this)
+        {
+            if (file == null)
+            {
+                return null;
+            }
+
+            flush();
+
+            final File target = file;
+            future = writer.submit(new Callable<Replay>()
+                {
+                    @Override
+                    public Replay call() throws IOException
+                    {
+                        return Replay.read(target);
+                    }
+                });
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException("interrupted reading replay");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("error reading replay: " + e.getCause());
+        }
+    }
+
+    @Override
+    public synchronized void gameStarted(int width, int height, long generatorState, int nextPieceShape)
+    {
+        file = new File(directory, System.currentTimeMillis() + Replay.FILE_SUFFIX);
+
+        // Queued before anything of the new file, so it runs while the new file is not there yet
+        writer.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    prune(MAX_REPLAY_COUNT - 1);
+                }
+            });
+
+        length = 0;
+        lastTick = 0;
+        nextKeyframeTick = keyframeInterval;
+
+        System.arraycopy(Replay.MAGIC, 0, buffer, 0, Replay.MAGIC.length);
+        length = Replay.putVarint(buffer, Replay.MAGIC.length, Replay.VERSION);
+        length = Replay.putVarint(buffer, length, keyframeInterval);
+        length = Replay.putVarint(buffer, length, width);
+        length = Replay.putVarint(buffer, length, height);
+        length = Replay.putVarint(buffer, length, generatorState);
+        length = Replay.putVarint(buffer, length, nextPieceShape);
+    }
+
+    @Override
+    public synchronized void input(long tick, Action action)
+    {
+        put(tick, action.ordinal());
+
+        if (length >= FLUSH_SIZE)
+        {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized boolean isKeyframeDue(long tick)
+    {
+        return (file != null) && (tick >= nextKeyframeTick);
+    }
+
+    @Override
+    public synchronized void keyframe(long tick, byte[] state)
+    {
+        if (file == null)
+        {
+            return;
+        }
+
+        if ((length + state.length + MAX_RECORD_SIZE) > buffer.length)
+        {
+            byte[] newBuffer = new byte[length + state.length + MAX_RECORD_SIZE];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+
+        put(tick, Replay.KEYFRAME);
+        length = Replay.putVarint(buffer, length, state.length);
+        System.arraycopy(state, 0, buffer, length, state.length);
+        length += state.length;
+        nextKeyframeTick = tick + keyframeInterval;
+
+        if (length >= FLUSH_SIZE)
+        {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void gameEnded(long tick)
+    {
+        put(tick, Replay.END);
+        flush();
+    }
+
+    private void put(long tick, int action)
+    {
+        if (file == null)
+        {
+            return;
+        }
+
+        length = Replay.putVarint(buffer, length, ((tick - lastTick) << Replay.ACTION_BITS) | action);
+        lastTick = tick;
+    }
+
+    private void flush()
+    {
+        if ((file == null) || (length == 0))
+        {
+            return;
+        }
+
+        final File target = file;
+        final byte[] bytes = new byte[length];
+        System.arraycopy(buffer, 0, bytes, 0, length);
+        length = 0;
+
+        writer.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    append(target, bytes);
+                }
+            });
+    }
+
+    /**
+     * Delete all but the newest replays in the directory, called on the writer thread
+     */
+    private void prune(int keepCount)
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+
+        // Names are start times in milliseconds
+        long[] times = new long[files.length];
+        int count = 0;
+        for (File replayFile : files)
+        {
+            String name = replayFile.getName();
+            if (name.endsWith(Replay.FILE_SUFFIX))
+            {
+                try
+                {
+                    times[count] = Long.parseLong(name.substring(0, name.length() - Replay.FILE_SUFFIX.length()));
+                    count++;
+                }
+                catch (NumberFormatException e)
+                {
+                    // Not written by us
+                }
+            }
+        }
+
+        Arrays.sort(times, 0, count);
+        for (int i = 0; i < (count - keepCount); i++)
+        {
+            File oldFile = new File(directory, times[i] + Replay.FILE_SUFFIX);
+            if (!oldFile.delete())
+            {
+                logger.log(Level.WARNING, "error deleting replay " + oldFile);
+            }
+        }
+    }
+
+    private void append(File target, byte[] bytes)
+    {
+        target.getParentFile().mkdirs();
+
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(target, true);
+            out.write(bytes);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.WARNING, "error writing replay " + target, e);
+        }
+        finally
+        {
+            try
+            {
+                if (out != null)
+                {
+                    out.close();
+                }
+            }
+            catch (IOException e)
+            {
+            }
+        }
+    }
+}
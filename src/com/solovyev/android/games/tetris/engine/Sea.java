@@ -0,0 +1,317 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+
+
+/**
+ * Settled blocks of the glass stored as bitboard
+ *
+ * Every row is an int bitmask with bit x set when the cell (x, row) is occupied, a parallel byte array keeps
+ * colors (ordinal + 1, 0 means empty). Cell test is a single mask operation and a full line is a single compare
+ * of the row against the full row mask.
+ */
+public class Sea
+{
+    private static final int MAX_WIDTH = 31;
+    private static final Cell.Color[] COLORS = Cell.Color.values();
+
+    private int width;
+    private int height;
+    private int fullRowMask;
+    private int[] rows;
+    private byte[] colors;
+    private int cellCount;
+    private Cell[] cellPool;
+    private List<Cell> cells;
+    private int[] rowsCopy;
+    private byte[] colorsCopy;
+
+    public Sea(int width, int height)
+    {
+        if ((width < 1) || (width > MAX_WIDTH))
+        {
+            throw new IllegalArgumentException("width should be between 1 and " + MAX_WIDTH + ": " + width);
+        }
+
+        this.width = width;
+        this.height = height;
+
+        fullRowMask = (1 << width) - 1;
+        rows = new int[height];
+        colors = new byte[width * height];
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getFullRowMask()
+    {
+        return fullRowMask;
+    }
+
+    public int getRow(int y)
+    {
+        return rows[y];
+    }
+
+    public int getCellCount()
+    {
+        return cellCount;
+    }
+
+    public void clear()
+    {
+        for (int y = 0; y < height; y++)
+        {
+            rows[y] = 0;
+        }
+
+        for (int i = 0; i < colors.length; i++)
+        {
+            colors[i] = 0;
+        }
+
+        cellCount = 0;
+        changed();
+    }
+
+    /**
+     * Make this sea the same as the other one, both should be of the same size
+     */
+    public void copyFrom(Sea sea)
+    {
+        if ((sea.width != width) || (sea.height != height))
+        {
+            throw new IllegalArgumentException("sea size differs: " + sea.width + "x" + sea.height);
+        }
+
+        System.arraycopy(sea.rows, 0, rows, 0, height);
+        System.arraycopy(sea.colors, 0, colors, 0, colors.length);
+        cellCount = sea.cellCount;
+        changed();
+    }
+
+    public boolean isInside(int x, int y)
+    {
+        return (x >= 0) && (x < width) && (y >= 0) && (y < height);
+    }
+
+    /**
+     * Check if sea has a block at given position, positions outside of the glass are never contained
+     */
+    public boolean isContaining(int x, int y)
+    {
+        return isInside(x, y) && ((rows[y] & (1 << x)) != 0);
+    }
+
+    public Cell.Color getColor(int x, int y)
+    {
+        int color = colors[(y * width) + x];
+
+        return (color == 0) ? null : COLORS[color - 1];
+    }
+
+    public void add(int x, int y, Cell.Color color)
+    {
+        if ((rows[y] & (1 << x)) == 0)
+        {
+            cellCount++;
+        }
+
+        rows[y] |= 1 << x;
+        colors[(y * width) + x] = (byte) (color.ordinal() + 1);
+        changed();
+    }
+
+    public boolean isRowFull(int y)
+    {
+        return rows[y] == fullRowMask;
+    }
+
+    /**
+     * Remove full rows, rows above removed ones sink down
+     *
+     * @return -- number of removed rows
+     */
+    public int pumpout()
+    {
+        return pumpout(null);
+    }
+
+    /**
+     * Remove full rows, rows above removed ones sink down
+     *
+     * @param removedRows -- array of at least height elements to put removed row indices to, top to bottom, or
+     *            null
+     * @return -- number of removed rows
+     */
+    public int pumpout(int[] removedRows)
+    {
+        int res = 0;
+
+        for (int y = 0; y < height; y++)
+        {
+            if (rows[y] == fullRowMask)
+            {
+                if (removedRows != null)
+                {
+                    removedRows[res] = y;
+                }
+
+                res++;
+                cellCount -= width;
+
+                System.arraycopy(rows, 0, rows, 1, y);
+                rows[0] = 0;
+
+                System.arraycopy(colors, 0, colors, width, y * width);
+                for (int x = 0; x < width; x++)
+                {
+                    colors[x] = 0;
+                }
+
+                changed();
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Get sea contents as cells, row by row from the top
+     *
+     * The list is read only and is shared until the sea changes, so repeated calls between changes cost nothing.
+     */
+    public List<Cell> getCells()
+    {
+        if (cells == null)
+        {
+            cells = Collections.unmodifiableList(makeCells());
+        }
+
+        return cells;
+    }
+
+    /**
+     * Get copy of the row masks, the copy is shared until the sea changes and should not be modified
+     */
+    public int[] getRowsCopy()
+    {
+        if (rowsCopy == null)
+        {
+            rowsCopy = rows.clone();
+        }
+
+        return rowsCopy;
+    }
+
+    /**
+     * Get copy of the colors, row by row, the copy is shared until the sea changes and should not be modified
+     */
+    public byte[] getColorsCopy()
+    {
+        if (colorsCopy == null)
+        {
+            colorsCopy = colors.clone();
+        }
+
+        return colorsCopy;
+    }
+
+    private void changed()
+    {
+        cells = null;
+        rowsCopy = null;
+        colorsCopy = null;
+    }
+
+    private List<Cell> makeCells()
+    {
+        List<Cell> res = new ArrayList<Cell>(cellCount);
+
+        for (int y = 0; y < height; y++)
+        {
+            int row = rows[y];
+            for (int x = 0; row != 0; x++, row >>>= 1)
+            {
+                if ((row & 1) != 0)
+                {
+                    res.add(getCell(x, y, colors[(y * width) + x] - 1));
+                }
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Cells are immutable and their constructor is not visible outside of the engine library, so all possible
+     * cells are made once through the public piece constructor and shared afterwards
+     */
+    private Cell getCell(int x, int y, int colorIndex)
+    {
+        if (cellPool == null)
+        {
+            cellPool = makeCellPool();
+        }
+
+        return cellPool[(colorIndex * width * height) + (y * width) + x];
+    }
+
+    private Cell[] makeCellPool()
+    {
+        Cell[] res = new Cell[COLORS.length * width * height];
+
+        int[][] coordinates = new int[width * height][];
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                coordinates[(y * width) + x] = new int[] { x, y };
+            }
+        }
+
+        for (int i = 0; i < COLORS.length; i++)
+        {
+            List<Cell> pieceCells = new Piece(coordinates, COLORS[i], 0, 0).getCells();
+            for (int j = 0; j < pieceCells.size(); j++)
+            {
+                res[(i * width * height) + j] = pieceCells.get(j);
+            }
+        }
+
+        return res;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder res = new StringBuilder();
+
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                res.append(((rows[y] & (1 << x)) != 0) ? '#' : '.');
+            }
+            res.append('\n');
+        }
+
+        return res.toString();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Scoring and gravity parameters of a game
+ *
+ * Score is paid for lines and pieces, every SCORE_PER_SPEED points raise the speed by one up to the engine
+ * maximum, and every speed step divides the gravity delay by the acceleration factor. DEFAULT is the curve the
+ * game ships with, others are for tuning runs.
+ */
+public class SpeedCurve
+{
+    public static final SpeedCurve DEFAULT = new SpeedCurve(30, 1.2, 800, 30, 10);
+
+    private int initialDelay;
+    private double accelerationFactor;
+    private int scorePerSpeed;
+    private int lineCost;
+    private int pieceCost;
+
+    /**
+     * @param initialDelay -- ticks per row at speed 1
+     * @param accelerationFactor -- delay divisor per speed step
+     * @param scorePerSpeed -- score to go up one speed
+     * @param lineCost -- score per removed line
+     * @param pieceCost -- score per piece
+     */
+    public SpeedCurve(int initialDelay, double accelerationFactor, int scorePerSpeed, int lineCost, int pieceCost)
+    {
+        if ((initialDelay <= 0) || (accelerationFactor < 1) || (scorePerSpeed <= 0))
+        {
+            throw new IllegalArgumentException("bad speed curve: " + initialDelay + ", " + accelerationFactor + ", " + scorePerSpeed);
+        }
+
+        this.initialDelay = initialDelay;
+        this.accelerationFactor = accelerationFactor;
+        this.scorePerSpeed = scorePerSpeed;
+        this.lineCost = lineCost;
+        this.pieceCost = pieceCost;
+    }
+
+    public int getInitialDelay()
+    {
+        return initialDelay;
+    }
+
+    public double getAccelerationFactor()
+    {
+        return accelerationFactor;
+    }
+
+    public int getScorePerSpeed()
+    {
+        return scorePerSpeed;
+    }
+
+    public int getLineCost()
+    {
+        return lineCost;
+    }
+
+    public int getPieceCost()
+    {
+        return pieceCost;
+    }
+
+    public int getScore(int lineCount, int pieceCount)
+    {
+        return (lineCount * lineCost) + (pieceCount * pieceCost);
+    }
+
+    public int getSpeed(int score)
+    {
+        return (score / scorePerSpeed) + 1;
+    }
+
+    /**
+     * Get ticks per row at a speed
+     */
+    public int getDelay(int speed)
+    {
+        return (int) (initialDelay / Math.exp(Math.log(accelerationFactor) * (speed - 1)));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "initialDelay=" + initialDelay + " accelerationFactor=" + accelerationFactor + " scorePerSpeed=" + scorePerSpeed + " lineCost=" + lineCost
+                + " pieceCost=" + pieceCost;
+    }
+}
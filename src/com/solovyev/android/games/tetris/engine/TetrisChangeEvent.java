@@ -0,0 +1,124 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import com.solovyev.games.tetris.TetrisEngine;
+import com.solovyev.games.tetris.TetrisEvent;
+
+
+/**
+ * Engine event telling what exactly changed
+ *
+ * Bounds are in glass cells, right and bottom are exclusive, they cover every cell which looks different after
+ * the change: old and new piece position for moves, the locked piece, all rows down to the lowest cleared one
+ * when lines are cleared, the whole glass when the game is reset. Bounds are empty when nothing in the glass
+ * changed.
+ */
+public class TetrisChangeEvent extends TetrisEvent
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final int[] NO_ROWS = new int[0];
+
+    public enum Kind
+    {
+        PIECE_MOVED, PIECE_ROTATED, PIECE_LOCKED, LINES_CLEARED, NEXT_PIECE_CHANGED, SCORE_CHANGED, GAME_STATE_CHANGED
+    }
+
+    private Kind kind;
+    private TetrisEngine.GameState gameState;
+    private int left;
+    private int top;
+    private int right;
+    private int bottom;
+    private int[] clearedRows;
+
+    public TetrisChangeEvent(TetrisEngine source, Kind kind, TetrisEngine.GameState gameState, int left, int top, int right, int bottom, int[] clearedRows)
+    {
+        super(source);
+
+        this.kind = kind;
+        this.gameState = gameState;
+
+        if ((left < right) && (top < bottom))
+        {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        this.clearedRows = (clearedRows == null) ? NO_ROWS : clearedRows;
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * Get game state right after the change
+     */
+    public TetrisEngine.GameState getGameState()
+    {
+        return gameState;
+    }
+
+    public int getLeft()
+    {
+        return left;
+    }
+
+    public int getTop()
+    {
+        return top;
+    }
+
+    public int getRight()
+    {
+        return right;
+    }
+
+    public int getBottom()
+    {
+        return bottom;
+    }
+
+    public boolean isBoundsEmpty()
+    {
+        return left >= right;
+    }
+
+    /**
+     * Check if settled cells changed within the bounds, otherwise only the piece did
+     */
+    public boolean isSeaChanged()
+    {
+        return !isBoundsEmpty() && ((kind == Kind.PIECE_LOCKED) || (kind == Kind.LINES_CLEARED) || (kind == Kind.GAME_STATE_CHANGED));
+    }
+
+    /**
+     * Get indices of cleared rows as they were before clearing, top to bottom, the array should not be modified
+     */
+    public int[] getClearedRows()
+    {
+        return clearedRows;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder res = new StringBuilder();
+
+        res.append("kind: ").append(kind).append(", gameState: ").append(gameState);
+        res.append(", bounds: ").append(left).append(',').append(top).append(',').append(right).append(',').append(bottom);
+        res.append(", clearedRows:");
+        for (int row : clearedRows)
+        {
+            res.append(' ').append(row);
+        }
+
+        return res.toString();
+    }
+}
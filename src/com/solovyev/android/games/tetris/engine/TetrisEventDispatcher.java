@@ -0,0 +1,140 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.util.ArrayList;
+
+import com.solovyev.games.tetris.TetrisEvent;
+import com.solovyev.games.tetris.TetrisListener;
+
+
+/**
+ * Delivers events to a listener from its own thread
+ *
+ * post() only queues the event, so the engine never waits for listeners and never calls them with its lock
+ * held. The thread takes everything queued at once and delivers it in order, a burst of events costs one wake
+ * up. The thread is started by the first event and quits after IDLE_TIMEOUT without events, so an engine which
+ * is dropped without being destroyed, e.g. a replay, does not keep a thread.
+ */
+public class TetrisEventDispatcher
+{
+    private static final long IDLE_TIMEOUT = 5000;
+
+    private TetrisListener target;
+    private ArrayList<TetrisEvent> pendingEvents = new ArrayList<TetrisEvent>();
+    private ArrayList<TetrisEvent> takenEvents = new ArrayList<TetrisEvent>();
+    private DispatchThread dispatchThread;
+
+    public TetrisEventDispatcher(TetrisListener target)
+    {
+        this.target = target;
+    }
+
+    /**
+     * Queue an event, may be called from any thread
+     */
+    public synchronized void post(TetrisEvent event)
+    {
+        pendingEvents.add(event);
+
+        if (dispatchThread == null)
+        {
+            startThread();
+        }
+        else
+        {
+            notify();
+        }
+    }
+
+    private void startThread()
+    {
+        dispatchThread = new DispatchThread();
+        dispatchThread.start();
+    }
+
+    /**
+     * Forget a thread which quit because a listener threw, events it did not deliver go to a new one
+     */
+    private synchronized void threadDied(DispatchThread thread)
+    {
+        if (dispatchThread == thread)
+        {
+            dispatchThread = null;
+            takenEvents.clear();
+
+            if (!pendingEvents.isEmpty())
+            {
+                startThread();
+            }
+        }
+    }
+
+    /**
+     * Wait for events and take all of them, called by the dispatch thread
+     *
+     * @return -- false if nothing came within the idle timeout, the thread is forgotten then and should quit
+     */
+    private synchronized boolean takeEvents()
+    {
+        long idleStart = System.currentTimeMillis();
+        while (pendingEvents.isEmpty())
+        {
+            long timeout = IDLE_TIMEOUT - (System.currentTimeMillis() - idleStart);
+            if (timeout <= 0)
+            {
+                // Nothing is being delivered, so a thread started by the next event can not overtake this one
+                dispatchThread = null;
+                return false;
+            }
+
+            try
+            {
+                wait(timeout);
+            }
+            catch (InterruptedException e)
+            {
+                dispatchThread = null;
+                return false;
+            }
+        }
+
+        ArrayList<TetrisEvent> events = takenEvents;
+        takenEvents = pendingEvents;
+        pendingEvents = events;
+
+        return true;
+    }
+
+    private class DispatchThread extends Thread
+    {
+        public DispatchThread()
+        {
+            super("TetrisDispatcher");
+
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (takeEvents())
+                {
+                    // Only this thread touches taken events until the next takeEvents()
+                    for (int i = 0; i < takenEvents.size(); i++)
+                    {
+                        target.stateChanged(takenEvents.get(i));
+                    }
+                    takenEvents.clear();
+                }
+            }
+            finally
+            {
+                threadDied(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Engine taking input without blocking the caller
+ *
+ * Input is queued with its event time and applied by the engine thread in time order at the start of the next
+ * tick, so the UI thread never waits for the engine lock.
+ */
+public interface TetrisInputSink
+{
+    /**
+     * @param eventTime -- time the input happened at, System.nanoTime() clock
+     * @return -- false if the input was dropped because too much input is waiting
+     */
+    boolean postInput(TetrisRecorder.Action action, long eventTime);
+}
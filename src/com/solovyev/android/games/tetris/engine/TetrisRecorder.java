@@ -0,0 +1,42 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Receives everything needed to play a game again: the starting state and input with the game tick it landed at,
+ * plus full state keyframes to start playing from in the middle of the game
+ *
+ * Called with the engine lock held, implementations should only buffer.
+ */
+public interface TetrisRecorder
+{
+    enum Action
+    {
+        MOVE_LEFT, MOVE_RIGHT, ROTATE_CLOCKWISE, ROTATE_COUNTERCLOCKWISE, DROP
+    }
+
+    /**
+     * @param generatorState -- piece generator state after the first piece was drawn
+     * @param nextPieceShape -- first piece shape
+     */
+    void gameStarted(int width, int height, long generatorState, int nextPieceShape);
+
+    void input(long tick, Action action);
+
+    /**
+     * Asked before every tick which runs game rules
+     */
+    boolean isKeyframeDue(long tick);
+
+    /**
+     * @param tick -- tick the state is after, including input at that tick
+     * @param state -- engine state to restore
+     */
+    void keyframe(long tick, byte[] state);
+
+    /**
+     * Game is over or was stopped
+     */
+    void gameEnded(long tick);
+}
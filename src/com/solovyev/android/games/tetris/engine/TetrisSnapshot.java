@@ -0,0 +1,122 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import java.util.List;
+
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * Immutable engine state at some moment
+ *
+ * All values come from the same tick. Sea arrays are shared between snapshots until the sea changes, so an
+ * identity check tells if the sea is different, they should not be modified.
+ */
+public class TetrisSnapshot
+{
+    private long version;
+    private TetrisEngine.GameState gameState;
+    private int score;
+    private int lineCount;
+    private int speed;
+    private int pieceCount;
+    private Piece piece;
+    private Piece nextPiece;
+    private List<Cell> sea;
+    private int[] seaRows;
+    private byte[] seaColors;
+
+    public TetrisSnapshot(long version, TetrisEngine.GameState gameState, int score, int lineCount, int speed, int pieceCount, Piece piece, Piece nextPiece,
+            List<Cell> sea, int[] seaRows, byte[] seaColors)
+    {
+        this.version = version;
+        this.gameState = gameState;
+        this.score = score;
+        this.lineCount = lineCount;
+        this.speed = speed;
+        this.pieceCount = pieceCount;
+        this.piece = piece;
+        this.nextPiece = nextPiece;
+        this.sea = sea;
+        this.seaRows = seaRows;
+        this.seaColors = seaColors;
+    }
+
+    /**
+     * Get version, it grows with every change of the engine state
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    public TetrisEngine.GameState getGameState()
+    {
+        return gameState;
+    }
+
+    public int getScore()
+    {
+        return score;
+    }
+
+    public int getLineCount()
+    {
+        return lineCount;
+    }
+
+    public int getSpeed()
+    {
+        return speed;
+    }
+
+    public int getPieceCount()
+    {
+        return pieceCount;
+    }
+
+    public Piece getPiece()
+    {
+        return piece;
+    }
+
+    public Piece getNextPiece()
+    {
+        return nextPiece;
+    }
+
+    /**
+     * Get settled cells, the list is read only
+     */
+    public List<Cell> getSea()
+    {
+        return sea;
+    }
+
+    /**
+     * Get sea row masks, bit x of row y is set when the cell is occupied
+     */
+    public int[] getSeaRows()
+    {
+        return seaRows;
+    }
+
+    /**
+     * Get sea colors, row by row, color ordinal + 1, 0 when empty
+     */
+    public byte[] getSeaColors()
+    {
+        return seaColors;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "version: " + version + ", " + "gameState: " + gameState + ", " + "score: " + score + ", " + "lineCount: " + lineCount + ", " + "speed: " + speed + ", "
+                + "pieceCount: " + pieceCount + ", " + "piece: " + piece + ", " + "nextPiece: " + nextPiece + ", " + "sea: " + sea;
+    }
+}
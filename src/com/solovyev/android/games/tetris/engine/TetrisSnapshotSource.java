@@ -0,0 +1,15 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+/**
+ * Engine publishing its state as snapshots
+ */
+public interface TetrisSnapshotSource
+{
+    /**
+     * Get the latest state, does not lock and never blocks the engine
+     */
+    TetrisSnapshot getSnapshot();
+}
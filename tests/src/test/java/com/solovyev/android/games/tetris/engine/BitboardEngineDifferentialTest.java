@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.solovyev.games.tetris.AbstractTetrisEngine;
+import com.solovyev.games.tetris.Cell;
+import com.solovyev.games.tetris.Piece;
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * Plays the same games on the bitboard engine and the library engine and checks they stay the same after every tick
+ *
+ * Both engines get pieces from the same seed, PieceGenerator follows java.util.Random, and the same random input.
+ */
+public class BitboardEngineDifferentialTest
+{
+    private static final int[] WIDTHS = { 4, 6, 10 };
+    private static final int HEIGHT = 20;
+    private static final int SEED_COUNT = 200;
+    private static final int MAX_TICKS = 2000000;
+
+    @Test
+    public void testSameGames() throws Exception
+    {
+        for (int width : WIDTHS)
+        {
+            for (long seed = 0; seed < SEED_COUNT; seed++)
+            {
+                playGame(width, seed);
+            }
+        }
+    }
+
+    private void playGame(int width, long seed) throws Exception
+    {
+        LibraryEngine libraryEngine = new LibraryEngine(width, HEIGHT, seed);
+        BitboardEngine bitboardEngine = new BitboardEngine(width, HEIGHT, seed);
+        TetrisEngine[] engines = { libraryEngine, bitboardEngine };
+
+        // The first piece of a game was picked as next before it, a first game is thrown away to pick all from the seed
+        for (TetrisEngine engine : engines)
+        {
+            engine.start();
+            engine.stop();
+            engine.start();
+        }
+
+        // Walk each piece to a random rotation and column, sometimes drop it
+        Random random = new Random(seed * 31);
+        int pieceCount = -1;
+        int rotations = 0;
+        int shift = 0;
+        for (int tick = 1; (libraryEngine.getGameState() != TetrisEngine.GameState.GAMEOVER) && (tick <= MAX_TICKS); tick++)
+        {
+            if (libraryEngine.getPieceCount() != pieceCount)
+            {
+                pieceCount = libraryEngine.getPieceCount();
+                rotations = random.nextInt(4);
+                shift = random.nextInt(width + 1) - (width / 2);
+            }
+
+            if (random.nextInt(3) == 0)
+            {
+                for (TetrisEngine engine : engines)
+                {
+                    if (rotations > 0)
+                    {
+                        if ((rotations & 1) != 0)
+                        {
+                            engine.rotatePieceClockwise();
+                        }
+                        else
+                        {
+                            engine.rotatePieceCounterclockwise();
+                        }
+                    }
+                    else if (shift < 0)
+                    {
+                        engine.movePieceLeft();
+                    }
+                    else if (shift > 0)
+                    {
+                        engine.movePieceRight();
+                    }
+                    else if ((tick % 5) == 0)
+                    {
+                        engine.dropPiece();
+                    }
+                }
+
+                if (rotations > 0)
+                {
+                    rotations--;
+                }
+                else if (shift != 0)
+                {
+                    shift -= Integer.signum(shift);
+                }
+            }
+
+            libraryEngine.timerEvent();
+            bitboardEngine.timerEvent();
+
+            assertEquals("width " + width + ", seed " + seed + ", tick " + tick, format(libraryEngine), format(bitboardEngine));
+        }
+    }
+
+    private static String format(TetrisEngine engine)
+    {
+        Piece piece = engine.getPiece();
+
+        return engine.getGameState() + " score " + engine.getScore() + " lines " + engine.getLineCount() + " pieces " + engine.getPieceCount()
+                + " speed " + engine.getSpeed() + "\nsea " + format(engine.getSea()) + "\npiece " + format(piece.getCells()) + " at "
+                + piece.getCenterX() + "," + piece.getCenterY() + "\nnext " + format(engine.getNextPiece().getCells());
+    }
+
+    // Engines do not keep cells in the same order
+    private static String format(List<Cell> cells)
+    {
+        TreeSet<String> res = new TreeSet<String>();
+        for (Cell cell : cells)
+        {
+            res.add(cell.getX() + "," + cell.getY() + " " + cell.getColor());
+        }
+
+        return res.toString();
+    }
+
+    private static class LibraryEngine extends AbstractTetrisEngine
+    {
+        public LibraryEngine(int width, int height, long seed) throws Exception
+        {
+            super(width, height);
+
+            Field field = AbstractTetrisEngine.class.getDeclaredField("random");
+            field.setAccessible(true);
+            field.set(this, new Random(seed));
+        }
+
+        @Override
+        protected void startTimer()
+        {
+        }
+
+        @Override
+        protected void stopTimer()
+        {
+        }
+    }
+
+    private static class BitboardEngine extends AbstractBitboardTetrisEngine
+    {
+        public BitboardEngine(int width, int height, long seed)
+        {
+            super(width, height, new PieceGenerator(seed));
+
+            // The constructor picked pieces already, start from the seed as the library engine does
+            getPieceGenerator().setSeed(seed);
+        }
+
+        @Override
+        protected void startTimer()
+        {
+        }
+
+        @Override
+        protected void stopTimer()
+        {
+        }
+    }
+}
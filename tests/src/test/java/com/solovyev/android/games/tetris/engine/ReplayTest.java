@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ */
+package com.solovyev.android.games.tetris.engine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.solovyev.games.tetris.TetrisEngine;
+
+
+/**
+ * Records games with a ReplayWriter, reads them back and checks playback ends in the same game
+ */
+public class ReplayTest
+{
+    private static final int WIDTH = 10;
+    private static final int HEIGHT = 20;
+    private static final int GAME_COUNT = 40;
+    private static final int KEYFRAME_INTERVAL = 300;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile("replays", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (File file : directory.listFiles())
+        {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testPlay() throws IOException
+    {
+        for (long seed = 1; seed <= GAME_COUNT; seed++)
+        {
+            HeadlessTetrisEngine engine = new HeadlessTetrisEngine(WIDTH, HEIGHT, seed);
+            Replay replay = record(engine, seed);
+            assertEquals(engine.getGameTick(), replay.getEndTick());
+            assertEquals(KEYFRAME_INTERVAL, replay.getKeyframeInterval());
+
+            HeadlessTetrisEngine player = replay.createEngine();
+            replay.play(player);
+
+            assertSameGame("seed " + seed, engine, player);
+        }
+    }
+
+    @Test
+    public void testSeek() throws IOException
+    {
+        for (long seed = 1; seed <= GAME_COUNT; seed++)
+        {
+            HeadlessTetrisEngine engine = new HeadlessTetrisEngine(WIDTH, HEIGHT, seed);
+            Replay replay = record(engine, seed);
+
+            // Seek backwards too, so keyframes and the start are both restored from a game in progress
+            HeadlessTetrisEngine player = replay.createEngine();
+            replay.play(player);
+            Random random = new Random(seed);
+            for (int i = 0; i < 5; i++)
+            {
+                long tick = (long) (random.nextDouble() * replay.getLength());
+
+                HeadlessTetrisEngine expected = replay.createEngine();
+                expected.start();
+                replay.playTo(expected, 0, tick);
+
+                replay.seek(player, tick);
+                assertSameGame("seed " + seed + ", tick " + tick, expected, player);
+            }
+        }
+    }
+
+    private Replay record(HeadlessTetrisEngine engine, long seed) throws IOException
+    {
+        ReplayWriter writer = new ReplayWriter(directory, KEYFRAME_INTERVAL);
+        engine.setRecorder(writer);
+
+        Random random = new Random(seed * 7);
+        engine.start();
+        while (engine.getGameState() != TetrisEngine.GameState.GAMEOVER)
+        {
+            engine.step(random.nextInt(12));
+            switch (random.nextInt(6))
+            {
+            case 0:
+                engine.movePieceLeft();
+                break;
+            case 1:
+                engine.movePieceRight();
+                break;
+            case 2:
+                engine.rotatePieceClockwise();
+                break;
+            case 3:
+                engine.rotatePieceCounterclockwise();
+                break;
+            case 4:
+                if (random.nextInt(4) == 0)
+                {
+                    engine.dropPiece();
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        Replay res = writer.getReplay();
+        assertNotNull(res);
+
+        return res;
+    }
+
+    private static void assertSameGame(String message, HeadlessTetrisEngine expected, HeadlessTetrisEngine actual)
+    {
+        TetrisSnapshot expectedSnapshot = expected.getSnapshot();
+        TetrisSnapshot actualSnapshot = actual.getSnapshot();
+
+        assertEquals(message, expected.getGameTick(), actual.getGameTick());
+        assertEquals(message, expectedSnapshot.getGameState(), actualSnapshot.getGameState());
+        assertEquals(message, expectedSnapshot.getScore(), actualSnapshot.getScore());
+        assertEquals(message, expectedSnapshot.getLineCount(), actualSnapshot.getLineCount());
+        assertEquals(message, expectedSnapshot.getPieceCount(), actualSnapshot.getPieceCount());
+        assertArrayEquals(message, expectedSnapshot.getSeaRows(), actualSnapshot.getSeaRows());
+        assertArrayEquals(message, expectedSnapshot.getSeaColors(), actualSnapshot.getSeaColors());
+        assertEquals(message, expectedSnapshot.getPiece().toString(), actualSnapshot.getPiece().toString());
+    }
+}